@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact, binary counterpart to {@link hudson.XmlFile} for test result trees.
+ *
+ * The file starts with a magic number and a format version, followed by the
+ * gzipped, serialized object graph. Every string is written once: repeats
+ * (class names, package names, labels) become back-references into the
+ * stream, which is what makes this so much smaller than the XML.
+ *
+ * Serialized classes change from one version of a plugin to the next, so a
+ * binary file is only ever a faster copy of something that's also kept as XML.
+ * Only a fixed list of classes is written or read: this plugin's results,
+ * the junit results, and the JDK types they're made of. A result that holds
+ * anything else (another parser's result, say) only gets the XML.
+ */
+class BinaryResultFile {
+    private static final int MAGIC = 0x4c544752; // "LTGR"
+
+    /**
+     * Bump this whenever the layout changes incompatibly. Files with a newer
+     * version than we know about are refused, so the caller can fall back to XML.
+     */
+    static final short VERSION = 1;
+
+    private final File file;
+
+    BinaryResultFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public Object read() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != MAGIC) {
+                throw new IOException(file + " is not a binary test result file");
+            }
+            short version = header.readShort();
+            if (version > VERSION) {
+                throw new IOException(file + " has format version " + version + ", but we only know up to " + VERSION);
+            }
+            ObjectInputStream ois = new PluginObjectInputStream(new GZIPInputStream(in));
+            try {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                IOException ioe = new IOException("Unable to read " + file + ": " + e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(Object o) throws IOException {
+        write(o, null);
+    }
+
+    /**
+     * Writes to a temporary file next to the target and renames it into place,
+     * so that a reader never sees a half-written file.
+     *
+     * @param omit an object that's written as null wherever it's referred to,
+     * so that a part of a graph can be written without the rest of it
+     */
+    public void write(Object o, Object omit) throws IOException {
+        File dir = file.getParentFile();
+        File tmp = File.createTempFile("atomic", "tmp", dir);
+        boolean committed = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeShort(VERSION);
+                header.flush();
+                GZIPOutputStream gz = new GZIPOutputStream(out);
+                ObjectOutputStream oos = new CheckedObjectOutputStream(gz, omit);
+                oos.writeObject(o);
+                oos.flush();
+                gz.finish();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // Windows won't rename over an existing file
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp + " to " + file);
+                }
+            }
+            committed = true;
+        } finally {
+            if (!committed) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Replaces equal strings by a single instance, so that serialization writes
+     * each distinct string once and refers back to it afterwards, and refuses
+     * classes that {@link PluginObjectInputStream} wouldn't read back.
+     */
+    private static class CheckedObjectOutputStream extends ObjectOutputStream {
+        private final Map<String, String> strings = new HashMap<String, String>();
+        private final Object omit;
+
+        CheckedObjectOutputStream(OutputStream out, Object omit) throws IOException {
+            super(out);
+            this.omit = omit;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected void annotateClass(Class<?> cl) throws IOException {
+            if (!isAllowed(cl.getName())) {
+                throw new InvalidClassException(cl.getName(), "not kept in binary test results");
+            }
+        }
+
+        @Override
+        protected void annotateProxyClass(Class<?> cl) throws IOException {
+            throw new InvalidClassException(cl.getName(), "not kept in binary test results");
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == omit) {
+                return null;
+            }
+            if (obj instanceof String) {
+                String s = (String) obj;
+                String shared = strings.get(s);
+                if (shared == null) {
+                    strings.put(s, s);
+                    return s;
+                }
+                return shared;
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Every class a binary result may hold, superclasses included. Anything
+     * else is neither written nor read.
+     */
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(
+            "java.lang.Object", "java.lang.String", "java.lang.Number", "java.lang.Integer", "java.lang.Long",
+            "java.lang.Float", "java.lang.Double", "java.lang.Boolean", "java.lang.Enum",
+            "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.LinkedHashMap",
+            "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+            "java.util.Arrays$ArrayList",
+            "java.util.Collections$EmptyList", "java.util.Collections$EmptyMap", "java.util.Collections$EmptySet",
+            "java.util.Collections$SingletonList", "java.util.Collections$SingletonMap", "java.util.Collections$SingletonSet",
+            "java.util.Collections$UnmodifiableCollection", "java.util.Collections$UnmodifiableList",
+            "java.util.Collections$UnmodifiableRandomAccessList", "java.util.Collections$UnmodifiableMap",
+            "java.util.Collections$UnmodifiableSet",
+            "java.util.Collections$SynchronizedCollection", "java.util.Collections$SynchronizedList",
+            "java.util.Collections$SynchronizedRandomAccessList", "java.util.Collections$SynchronizedMap",
+            "java.util.Collections$SynchronizedSet",
+            "java.util.concurrent.CopyOnWriteArrayList", "java.util.concurrent.ConcurrentHashMap",
+            "java.util.concurrent.ConcurrentHashMap$Segment",
+            "java.util.concurrent.locks.ReentrantLock", "java.util.concurrent.locks.ReentrantLock$Sync",
+            "java.util.concurrent.locks.ReentrantLock$NonfairSync",
+            "java.util.concurrent.locks.AbstractQueuedSynchronizer",
+            "java.util.concurrent.locks.AbstractOwnableSynchronizer",
+            "java.util.concurrent.atomic.AtomicInteger", "java.util.concurrent.atomic.AtomicLong",
+            "java.util.concurrent.atomic.AtomicBoolean",
+            "hudson.tasks.test.TestObject", "hudson.tasks.test.TestResult",
+            "hudson.tasks.test.TabulatedResult", "hudson.tasks.test.MetaTabulatedResult",
+            "hudson.tasks.junit.TestObject", "hudson.tasks.junit.TestResult", "hudson.tasks.junit.SuiteResult",
+            "hudson.tasks.junit.CaseResult", "hudson.tasks.junit.CaseResult$Status",
+            "hudson.tasks.junit.PackageResult", "hudson.tasks.junit.ClassResult",
+            MetaLabeledTestResultGroup.class.getName(), LabeledTestResultGroup.class.getName(),
+            CompactTestResult.class.getName(), CompactCaseResult.class.getName()));
+
+    /**
+     * @param name a class name as {@link Class#getName()} has it, arrays included
+     */
+    static boolean isAllowed(String name) {
+        String element = name;
+        while (element.startsWith("[")) {
+            element = element.substring(1);
+        }
+        if (element.length() != name.length()) {
+            if (!element.startsWith("L")) {
+                return true; // an array of primitives
+            }
+            element = element.substring(1, element.length() - 1);
+        }
+        return ALLOWED_CLASSES.contains(element);
+    }
+
+    /**
+     * Result trees hold junit's classes too, so resolve against every plugin,
+     * not just this one. Only {@link #ALLOWED_CLASSES} are resolved at all.
+     */
+    private static class PluginObjectInputStream extends ObjectInputStream {
+        PluginObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!isAllowed(name)) {
+                throw new InvalidClassException(name, "not allowed in a test result");
+            }
+            return load(name); // Class.forName takes array names too
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("proxy", "not allowed in a test result");
+        }
+
+        private Class<?> load(String name) throws ClassNotFoundException {
+            Hudson h = Hudson.getInstance();
+            if (h != null) {
+                try {
+                    return Class.forName(name, false, h.getPluginManager().uberClassLoader);
+                } catch (ClassNotFoundException e) {
+                    // fall through to the default lookup
+                }
+            }
+            return Class.forName(name, false, BinaryResultFile.class.getClassLoader());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.tasks.test.TestObject;
+import hudson.tasks.test.TestResult;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * One failed test case inside a {@link CompactTestResult}. Passing and skipped
+ * cases are only counted, never kept.
+ */
+@ExportedBean
+public class CompactCaseResult extends TestResult {
+    private static final long serialVersionUID = 1L;
+
+    protected String className;
+    protected String testName;
+    protected float duration;
+    protected String errorDetails;
+    protected String errorStackTrace;
+    protected transient CompactTestResult parent;
+
+    public CompactCaseResult(String className, String testName, float duration, String errorDetails, String errorStackTrace) {
+        this.className = className;
+        this.testName = testName;
+        this.duration = duration;
+        this.errorDetails = errorDetails;
+        this.errorStackTrace = errorStackTrace;
+    }
+
+    @Exported(visibility=99)
+    public String getClassName() {
+        return className;
+    }
+
+    @Exported(visibility=99)
+    public String getTestName() {
+        return testName;
+    }
+
+    public String getFullName() {
+        return className + "." + testName;
+    }
+
+    @Override
+    public String getName() {
+        return getFullName();
+    }
+
+    public String getDisplayName() {
+        return getFullName();
+    }
+
+    @Override
+    public String getTitle() {
+        return "Test Failure: " + getFullName();
+    }
+
+    @Override
+    public TestObject getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setParent(TestObject parent) {
+        if (parent instanceof CompactTestResult) {
+            this.parent = (CompactTestResult) parent;
+        }
+    }
+
+    @Override
+    public Run<?, ?> getRun() {
+        if (parent == null) return null;
+        return parent.getRun();
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public float getDuration() {
+        return duration;
+    }
+
+    @Override
+    public int getFailCount() {
+        return 1;
+    }
+
+    @Override
+    public boolean isPassed() {
+        return false;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public String getErrorDetails() {
+        return errorDetails;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public String getErrorStackTrace() {
+        return errorStackTrace;
+    }
+
+    @Override
+    public TestResult getPreviousResult() {
+        if (parent == null) return null;
+        TestResult previousParent = parent.getPreviousResult();
+        if (previousParent == null) return null;
+        return previousParent.findCorrespondingResult(getSafeName());
+    }
+
+    @Override
+    public TestResult getResultInBuild(AbstractBuild<?, ?> build) {
+        if (parent == null) return null;
+        TestResult parentInBuild = parent.getResultInBuild(build);
+        if (parentInBuild == null) return null;
+        return parentInBuild.findCorrespondingResult(getSafeName());
+    }
+
+    @Override
+    public TestResult findCorrespondingResult(String id) {
+        if (id == null || id.equals(getSafeName())) {
+            return this;
+        }
+        return null;
+    }
+
+    @Override
+    public String toPrettyString() {
+        return "FAILED: " + getFullName() + "\n" + (errorDetails == null ? "" : errorDetails);
+    }
+}
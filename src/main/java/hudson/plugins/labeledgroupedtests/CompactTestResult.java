@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.SuiteResult;
+import hudson.tasks.test.TestObject;
+import hudson.tasks.test.TestResult;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pre-tallied stand-in for a parser's full result: the counts, the failures,
+ * and how long each suite took. It is built on the agent by
+ * {@link CompactTestResultCallable}, so the controller never has to hold the
+ * whole result tree.
+ */
+@ExportedBean
+public class CompactTestResult extends TestResult {
+    private static final long serialVersionUID = 1L;
+
+    protected String name;
+    protected int passCount = 0;
+    protected int failCount = 0;
+    protected int skipCount = 0;
+    protected float duration = 0;
+    protected String[] suiteNames;
+    protected float[] suiteDurations;
+    protected List<CompactCaseResult> failures;
+    protected transient TestObject parent;
+    /** The failures by safe name, for drill-down; built on first use */
+    private transient volatile Map<String, CompactCaseResult> failuresBySafeName;
+
+    public CompactTestResult(String name, int passCount, int failCount, int skipCount, float duration,
+                             String[] suiteNames, float[] suiteDurations, List<CompactCaseResult> failures) {
+        this.name = name;
+        this.passCount = passCount;
+        this.failCount = failCount;
+        this.skipCount = skipCount;
+        this.duration = duration;
+        this.suiteNames = suiteNames;
+        this.suiteDurations = suiteDurations;
+        this.failures = failures;
+        for (CompactCaseResult failure : failures) {
+            failure.setParent(this);
+        }
+    }
+
+    /**
+     * Boil a full junit result down to its summary.
+     */
+    public static CompactTestResult summarize(String name, hudson.tasks.junit.TestResult result) {
+        result.tally();
+
+        Collection<SuiteResult> suites = result.getSuites();
+        String[] suiteNames = new String[suites.size()];
+        float[] suiteDurations = new float[suites.size()];
+        int i = 0;
+        for (SuiteResult suite : suites) {
+            suiteNames[i] = suite.getName();
+            suiteDurations[i] = suite.getDuration();
+            i++;
+        }
+
+        List<CompactCaseResult> failures = new ArrayList<CompactCaseResult>(result.getFailCount());
+        for (CaseResult c : result.getFailedTests()) {
+            failures.add(new CompactCaseResult(c.getClassName(), c.getName(), c.getDuration(),
+                    c.getErrorDetails(), c.getErrorStackTrace()));
+        }
+
+        return new CompactTestResult(name, result.getPassCount(), result.getFailCount(), result.getSkipCount(),
+                result.getDuration(), suiteNames, suiteDurations, failures);
+    }
+
+    /**
+     * Bring the failures back in touch with their parent after deserializing.
+     */
+    public Object readResolve() {
+        if (failures == null) failures = new ArrayList<CompactCaseResult>();
+        if (suiteNames == null) suiteNames = new String[0];
+        if (suiteDurations == null) suiteDurations = new float[0];
+        for (CompactCaseResult failure : failures) {
+            failure.setParent(this);
+        }
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Exported(visibility=99)
+    public String getDisplayName() {
+        return name;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Test Result Summary";
+    }
+
+    @Override
+    public TestObject getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setParent(TestObject parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    public Run<?, ?> getRun() {
+        if (parent == null) return null;
+        return parent.getRun();
+    }
+
+    @Override
+    public void tally() {
+        // Nothing to do; we were tallied before we left the agent.
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public int getPassCount() {
+        return passCount;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public int getFailCount() {
+        return failCount;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public int getSkipCount() {
+        return skipCount;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public float getDuration() {
+        return duration;
+    }
+
+    @Override
+    public boolean isPassed() {
+        return failCount == 0;
+    }
+
+    @Exported(visibility=99)
+    @Override
+    public Collection<? extends TestResult> getFailedTests() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    public int getSuiteCount() {
+        return suiteNames.length;
+    }
+
+    public String getSuiteName(int i) {
+        return suiteNames[i];
+    }
+
+    public float getSuiteDuration(int i) {
+        return suiteDurations[i];
+    }
+
+    public CompactCaseResult getFailure(String safeName) {
+        Map<String, CompactCaseResult> index = failuresBySafeName;
+        if (index == null) {
+            index = new HashMap<String, CompactCaseResult>(failures.size() * 2);
+            for (CompactCaseResult failure : failures) {
+                // The first of several failures with the same name wins, as it always has
+                if (!index.containsKey(failure.getSafeName())) {
+                    index.put(failure.getSafeName(), failure);
+                }
+            }
+            failuresBySafeName = index;
+        }
+        return index.get(safeName);
+    }
+
+    @Override
+    public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
+        CompactCaseResult failure = getFailure(token);
+        if (failure != null) {
+            return failure;
+        }
+        return super.getDynamic(token, req, rsp);
+    }
+
+    @Override
+    public TestResult getPreviousResult() {
+        if (parent == null) return null;
+        TestResult previousParent = parent.getPreviousResult();
+        if (previousParent == null) return null;
+        return previousParent.findCorrespondingResult(getName());
+    }
+
+    @Override
+    public TestResult getResultInBuild(AbstractBuild<?, ?> build) {
+        if (parent == null) return null;
+        TestResult parentInBuild = parent.getResultInBuild(build);
+        if (parentInBuild == null) return null;
+        return parentInBuild.findCorrespondingResult(getName());
+    }
+
+    @Override
+    public TestResult findCorrespondingResult(String id) {
+        if (id == null || id.equals(getSafeName())) {
+            return this;
+        }
+        int slash = id.indexOf('/');
+        if (slash > 0 && id.substring(0, slash).equals(getSafeName())) {
+            return getFailure(id.substring(slash + 1));
+        }
+        return getFailure(id);
+    }
+
+    @Override
+    public String toPrettyString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Summary of ").append(suiteNames.length).append(" suites: ")
+                .append(passCount).append(" passed, ")
+                .append(failCount).append(" failed, ")
+                .append(skipCount).append(" skipped\n");
+        for (CompactCaseResult failure : failures) {
+            sb.append("\tFAILED: ").append(failure.getFullName()).append("\n");
+        }
+        return sb.toString();
+    }
+}
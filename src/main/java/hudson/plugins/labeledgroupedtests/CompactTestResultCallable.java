@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Parses junit reports where they live, on the agent, and ships back only a
+ * {@link CompactTestResult} for the label/parser pair.
+ */
+class CompactTestResultCallable implements FilePath.FileCallable<CompactTestResult> {
+    private static final long serialVersionUID = 1L;
+
+    private final String fileMask;
+    private final String name;
+    private final long buildTime;
+    private final long nowMaster;
+    private final TaskListener listener;
+
+    /**
+     * @param name the name the resulting summary should carry
+     */
+    CompactTestResultCallable(String fileMask, String name, long buildTime, long nowMaster, TaskListener listener) {
+        this.fileMask = fileMask;
+        this.name = name;
+        this.buildTime = buildTime;
+        this.nowMaster = nowMaster;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the summary, or null if there was nothing to parse.
+     */
+    public CompactTestResult invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        final long nowSlave = System.currentTimeMillis();
+        FileSet fs = Util.createFileSet(ws, fileMask);
+        DirectoryScanner ds = fs.getDirectoryScanner();
+        if (ds.getIncludedFiles().length == 0) {
+            listener.getLogger().println("No test report files were found for " + fileMask + ". Configuration error?");
+            return null;
+        }
+        // Same clock skew correction the junit parser makes
+        hudson.tasks.junit.TestResult result =
+                new hudson.tasks.junit.TestResult(buildTime + (nowSlave - nowMaster), ds, false);
+        return CompactTestResult.summarize(name, result);
+    }
+}
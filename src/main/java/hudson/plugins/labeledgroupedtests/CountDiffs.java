@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+/**
+ * Pass, fail, skip and total diffs against the previous build, remembered
+ * together with the {@link JobHistory history generation} of the project
+ * they were worked out in, so they can be thrown away when the history changes.
+ */
+final class CountDiffs {
+    private final JobHistory history;
+    final long generation;
+    final int passDiff;
+    final int failDiff;
+    final int skipDiff;
+    final int totalDiff;
+
+    CountDiffs(JobHistory history, long generation, int passDiff, int failDiff, int skipDiff, int totalDiff) {
+        this.history = history;
+        this.generation = generation;
+        this.passDiff = passDiff;
+        this.failDiff = failDiff;
+        this.skipDiff = skipDiff;
+        this.totalDiff = totalDiff;
+    }
+
+    boolean isCurrent() {
+        return generation == history.getGeneration();
+    }
+}
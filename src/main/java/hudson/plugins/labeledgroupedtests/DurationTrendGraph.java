@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.Util;
+import hudson.util.ChartUtil;
+import hudson.util.ColorPalette;
+import hudson.util.DataSetBuilder;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.labels.CategoryToolTipGenerator;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.chart.urls.CategoryURLGenerator;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.ui.RectangleInsets;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How long the tests of one label took, build by build, with the median and
+ * the 90th percentile over a rolling window of the builds before it. The
+ * durations come from the same {@link TrendPoint}s as the count graphs, so
+ * no result is ever loaded to draw it.
+ */
+public class DurationTrendGraph extends TrendGraph {
+    /**
+     * How many builds (with results for the label) the median and percentile
+     * are taken over.
+     */
+    public static int WINDOW = Integer.getInteger(DurationTrendGraph.class.getName() + ".window", 10);
+
+    private static final String DURATION = "Duration";
+    private static final String MEDIAN = "Median";
+    private static final String PERCENTILE = "90th percentile";
+
+    private final String relativeUrl;
+    /** How many rows to draw; 0 draws them all */
+    private final int target;
+
+    protected DurationTrendGraph(long timestamp, String cacheKey, String relativeUrl) {
+        this(timestamp, cacheKey, relativeUrl, 0);
+    }
+
+    /**
+     * @param target how many rows the graph is thinned down to once the
+     * statistics are worked out; 0 draws them all
+     */
+    protected DurationTrendGraph(long timestamp, String cacheKey, String relativeUrl, int target) {
+        super(timestamp, cacheKey, relativeUrl, "seconds");
+        this.relativeUrl = relativeUrl;
+        this.target = target;
+    }
+
+    /**
+     * The rolling statistics of the points, one row per point that had
+     * results. They're taken over every point given, before any thinning
+     * down for the graph. Builds from before durations were kept have none,
+     * and would only drag the median down, so they're left out.
+     */
+    public List<Stats> getStats() {
+        List<TrendPoint> points = new ArrayList<TrendPoint>();
+        for (TrendPoint p : getList()) {
+            if (p.getTotalCount() > 0 && p.getDuration() > 0) {
+                points.add(p);
+            }
+        }
+        int window = Math.max(1, WINDOW);
+        List<Stats> stats = new ArrayList<Stats>(points.size());
+        float[] durations = new float[window];
+        for (int i = 0; i < points.size(); i++) {
+            int n = Math.min(window, i + 1);
+            for (int j = 0; j < n; j++) {
+                durations[j] = points.get(i - j).getDuration();
+            }
+            Arrays.sort(durations, 0, n);
+            stats.add(new Stats(points.get(i), percentile(durations, n, 50), percentile(durations, n, 90)));
+        }
+        return stats;
+    }
+
+    /**
+     * The rows of {@link #getStats()} that are drawn, thinned down the same
+     * way as the count graphs.
+     */
+    List<Stats> getDrawnStats() {
+        List<Stats> stats = getStats();
+        List<TrendPoint> points = new ArrayList<TrendPoint>(stats.size());
+        for (Stats s : stats) {
+            points.add(s.getPoint());
+        }
+        List<TrendPoint> kept = TrendSampler.downsample(points, target);
+        if (kept == points) {
+            return stats;
+        }
+        // The points kept are the rows' own, in the same order
+        List<Stats> drawn = new ArrayList<Stats>(kept.size());
+        int k = 0;
+        for (Stats s : stats) {
+            if (k < kept.size() && s.getPoint() == kept.get(k)) {
+                drawn.add(s);
+                k++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * The nearest-rank percentile of the first n (sorted) values.
+     */
+    static float percentile(float[] sorted, int n, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * n);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * One build's duration, and the median and 90th percentile of the window
+     * that ends with it.
+     */
+    public static final class Stats {
+        private final TrendPoint point;
+        private final float median;
+        private final float percentile;
+
+        Stats(TrendPoint point, float median, float percentile) {
+            this.point = point;
+            this.median = median;
+            this.percentile = percentile;
+        }
+
+        public TrendPoint getPoint() {
+            return point;
+        }
+
+        public float getMedian() {
+            return median;
+        }
+
+        public float getPercentile() {
+            return percentile;
+        }
+    }
+
+    @Override
+    protected JFreeChart createGraph() {
+        final List<Stats> stats = getDrawnStats();
+        DataSetBuilder<String, ChartLabel> data = new DataSetBuilder<String, ChartLabel>();
+        for (Stats s : stats) {
+            ChartLabel label = new ChartLabel(s.getPoint());
+            data.add(s.getPoint().getDuration(), DURATION, label);
+            data.add(s.getMedian(), MEDIAN, label);
+            data.add(s.getPercentile(), PERCENTILE, label);
+        }
+        final CategoryDataset dataset = data.build();
+
+        final JFreeChart chart = ChartFactory.createLineChart(null, // chart title
+                null, // unused
+                "seconds", // range axis label
+                dataset, // data
+                PlotOrientation.VERTICAL, // orientation
+                true, // include legend
+                true, // tooltips
+                false // urls
+        );
+        chart.setBackgroundPaint(Color.white);
+        chart.getLegend().setBorder(0, 0, 0, 0);
+
+        final CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+        ChartUtil.adjustChebyshev(dataset, rangeAxis);
+        rangeAxis.setAutoRange(true);
+
+        LineAndShapeRenderer renderer = (LineAndShapeRenderer) plot.getRenderer();
+        renderer.setBaseStroke(new BasicStroke(2.0f));
+        if (!stats.isEmpty()) {
+            // The builder sorts the series by name, so look them up
+            renderer.setSeriesPaint(dataset.getRowIndex(DURATION), ColorPalette.BLUE);
+            renderer.setSeriesPaint(dataset.getRowIndex(MEDIAN), ColorPalette.GREY);
+            renderer.setSeriesPaint(dataset.getRowIndex(PERCENTILE), ColorPalette.RED);
+            renderer.setSeriesShapesVisible(dataset.getRowIndex(DURATION), true);
+        }
+        renderer.setBaseItemURLGenerator(new CategoryURLGenerator() {
+            public String generateURL(CategoryDataset dataset, int series, int category) {
+                ChartLabel label = (ChartLabel) dataset.getColumnKey(category);
+                return label.getURL() + relativeUrl;
+            }
+        });
+        renderer.setBaseToolTipGenerator(new CategoryToolTipGenerator() {
+            public String generateToolTip(CategoryDataset dataset, int row, int column) {
+                Stats s = stats.get(column);
+                return "#" + s.getPoint().getBuildNumber() + " " + s.getPoint().getDurationString()
+                        + ", median " + Util.getTimeSpanString((long) (s.getMedian() * 1000))
+                        + ", 90th percentile " + Util.getTimeSpanString((long) (s.getPercentile() * 1000));
+            }
+        });
+
+        // crop extra space around the graph
+        plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+
+        return chart;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.test.TestResult;
+import hudson.util.XStream2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * For a build, the build in which each of its failures started failing: the
+ * whole result, each label, and each failing test (by id) within its label.
+ * Each build keeps its own in its directory, and the latest one is also kept
+ * in the project's directory. It's moved forward one build at a time as
+ * builds complete, so nobody has to walk back through the history to find out
+ * how old a failure is.
+ *
+ * The whole result's and each label's start also go into the build's own
+ * {@link ResultSummary}, which builds from before single tests' starts were
+ * kept fall back on.
+ *
+ * An index isn't changed once it's been worked out; moving forward makes a new one.
+ */
+public class FailureAgeIndex {
+    private static final Logger LOGGER = Logger.getLogger(FailureAgeIndex.class.getName());
+    static final String FILENAME = "labeledTestFailureAges.xml";
+
+    /** The latest index of each project, read from disk the first time it's needed */
+    private static final Map<Job<?, ?>, Holder> HOLDERS = new WeakHashMap<Job<?, ?>, Holder>();
+
+    /**
+     * Each project's index is moved forward under its own lock, so projects
+     * don't wait on each other. Readers don't take it once the index is loaded.
+     */
+    private static final class Holder {
+        private volatile FailureAgeIndex index;
+        private volatile boolean loaded;
+
+        FailureAgeIndex get(Job<?, ?> job) {
+            if (loaded) {
+                return index;
+            }
+            synchronized (this) {
+                if (!loaded) {
+                    index = read(getFile(job));
+                    loaded = true;
+                }
+                return index;
+            }
+        }
+    }
+
+    /** Stands in for builds that have no index of their own */
+    static final FailureAgeIndex UNKNOWN = new FailureAgeIndex();
+
+    /** The build this index is up to date with */
+    private int buildNumber;
+    /** Where the whole result's failure streak started, or 0 if it passed */
+    private int failedSince;
+    private Map<String, Integer> labelFailedSince = new HashMap<String, Integer>();
+    private Map<String, Map<String, Integer>> testFailedSince = new HashMap<String, Map<String, Integer>>();
+
+    int getBuildNumber() {
+        return buildNumber;
+    }
+
+    int getFailedSince() {
+        return failedSince;
+    }
+
+    /**
+     * @return 0 if the label passed
+     */
+    int getFailedSince(String label) {
+        Integer since = labelFailedSince.get(label);
+        return since == null ? 0 : since;
+    }
+
+    /**
+     * @return test id to the build it started failing in, for the failing tests of a label
+     */
+    Map<String, Integer> getTestsFailedSince(String label) {
+        Map<String, Integer> tests = testFailedSince.get(label);
+        if (tests == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(tests);
+    }
+
+    /**
+     * The build in which a failing test of a build started failing.
+     *
+     * @return 0 if that test isn't failing, or if the build is from before
+     * single tests' starts were kept.
+     */
+    static int getFailedSince(MetaLabeledTestResultGroupAction action, String label, String testId) {
+        FailureAgeIndex index = action.getFailureAges();
+        if (index == null) {
+            return 0;
+        }
+        Integer since = index.getTestsFailedSince(label).get(testId);
+        return since == null ? 0 : since;
+    }
+
+    private static Holder holder(Job<?, ?> job) {
+        synchronized (HOLDERS) {
+            Holder h = HOLDERS.get(job);
+            if (h == null) {
+                h = new Holder();
+                HOLDERS.put(job, h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Work out the ages for a build that just completed, store them with it,
+     * and move the project's index forward to it.
+     *
+     * A later build that completed before this one had to do without our
+     * ages, so its own are worked out again, and so on up to the first
+     * build that's still running.
+     *
+     * @param result the build's result, as the build left it in memory
+     */
+    static void record(MetaLabeledTestResultGroupAction action, MetaLabeledTestResultGroup result) {
+        while (true) {
+            recordOne(action, result);
+            action = nextCompleted(action.run);
+            if (action == null) {
+                return;
+            }
+            result = action.getResult();
+            if (result == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The action of the next build with results, if that build has completed already.
+     */
+    private static MetaLabeledTestResultGroupAction nextCompleted(Run<?, ?> run) {
+        for (Run<?, ?> b = run.getNextBuild(); b != null; b = b.getNextBuild()) {
+            if (b.isBuilding()) {
+                return null;
+            }
+            MetaLabeledTestResultGroupAction a = b.getAction(MetaLabeledTestResultGroupAction.class);
+            if (a != null) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    private static void recordOne(MetaLabeledTestResultGroupAction action, MetaLabeledTestResultGroup result) {
+        Run<?, ?> run = action.run;
+        Job<?, ?> job = run.getParent();
+        MetaLabeledTestResultGroupAction previousAction = action.getPreviousAction();
+        Holder holder = holder(job);
+        FailureAgeIndex next;
+        synchronized (holder) {
+            // Carry on from the stored index if it's at our previous build; otherwise
+            // (first time, or builds finishing out of order) from that build's own.
+            FailureAgeIndex stored = holder.get(job);
+            FailureAgeIndex base;
+            if (stored != null && previousAction != null && stored.buildNumber == previousAction.run.getNumber()) {
+                base = stored;
+            } else {
+                base = of(previousAction);
+            }
+
+            next = base.advance(run.getNumber(), result);
+
+            // Equal when a build's ages are worked out again
+            if (stored == null || next.buildNumber >= stored.buildNumber) {
+                holder.index = next;
+                XmlFile file = getFile(job);
+                try {
+                    file.write(next);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+                }
+            }
+        }
+        action.recordFailureAges(next);
+    }
+
+    static FailureAgeIndex read(XmlFile file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return (FailureAgeIndex) file.read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file + ", rebuilding it", e);
+        } catch (ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Unexpected content in " + file + ", rebuilding it", e);
+        }
+        return null;
+    }
+
+    /**
+     * The ages as of a build: its own index, or what its summary knows.
+     */
+    private static FailureAgeIndex of(MetaLabeledTestResultGroupAction action) {
+        FailureAgeIndex index = new FailureAgeIndex();
+        if (action == null) {
+            return index;
+        }
+        FailureAgeIndex own = action.getFailureAges();
+        if (own != null) {
+            return own;
+        }
+        index.buildNumber = action.run.getNumber();
+        ResultSummary summary = action.getSummary();
+        if (!summary.hasFailureAges()) {
+            // Too old to know; its failures will look like they started with the next build.
+            return index;
+        }
+        // From before single tests' ages were kept, so those start over here.
+        index.failedSince = summary.getFailedSince();
+        for (ResultSummary.LabelSummary ls : summary.getLabelSummaries()) {
+            if (ls.getFailedSince() > 0) {
+                index.labelFailedSince.put(ls.getLabel(), ls.getFailedSince());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The index for the next build: streaks that go on keep their start,
+     * new failures start here, and fixed ones are dropped.
+     */
+    FailureAgeIndex advance(int number, MetaLabeledTestResultGroup result) {
+        FailureAgeIndex next = new FailureAgeIndex();
+        next.buildNumber = number;
+        if (result.getFailCount() > 0) {
+            next.failedSince = failedSince > 0 ? failedSince : number;
+        }
+        for (String label : result.getLabels()) {
+            LabeledTestResultGroup group = result.getGroupByLabel(label);
+            if (group == null || group.getFailCount() == 0) {
+                continue;
+            }
+            next.labelFailedSince.put(label, getFailedSince(label) > 0 ? getFailedSince(label) : number);
+
+            Map<String, Integer> before = getTestsFailedSince(label);
+            Map<String, Integer> now = new HashMap<String, Integer>();
+            for (TestResult child : group.getChildren()) {
+                for (TestResult failed : child.getFailedTests()) {
+                    String id = failed.getId();
+                    Integer since = before.get(id);
+                    now.put(id, since != null ? since : number);
+                }
+            }
+            next.testFailedSince.put(label, now);
+        }
+        return next;
+    }
+
+    private static XmlFile getFile(Job<?, ?> job) {
+        return new XmlFile(XSTREAM, new File(job.getRootDir(), FILENAME));
+    }
+
+    static XmlFile getFile(Run<?, ?> run) {
+        return new XmlFile(XSTREAM, new File(run.getRootDir(), FILENAME));
+    }
+
+    private static final XStream XSTREAM = new XStream2();
+}
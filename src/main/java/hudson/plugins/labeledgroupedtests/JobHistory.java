@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How often a project's history has changed: bumped by
+ * {@link LabeledTestResultGroupRunListener} whenever one of its builds goes
+ * away or a build with results completes. Those are the ways the previous
+ * build with results can change for another build: a build that ran alongside
+ * it may only now have its result. Anything worked out from the previous
+ * build is only good for the generation it was worked out in.
+ */
+final class JobHistory {
+    private static final Map<Job<?, ?>, JobHistory> HISTORIES = new WeakHashMap<Job<?, ?>, JobHistory>();
+
+    /** For results that don't belong to a build, whose history never changes */
+    private static final JobHistory NONE = new JobHistory();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * When the generation last moved, for a Last-Modified that moves with it.
+     * Starts out when the project is first looked at, since nothing
+     * remembered before then counts.
+     */
+    private volatile long changedAt = System.currentTimeMillis();
+
+    private JobHistory() {
+    }
+
+    static JobHistory of(Job<?, ?> job) {
+        synchronized (HISTORIES) {
+            JobHistory h = HISTORIES.get(job);
+            if (h == null) {
+                h = new JobHistory();
+                HISTORIES.put(job, h);
+            }
+            return h;
+        }
+    }
+
+    static JobHistory of(Run<?, ?> run) {
+        return run == null ? NONE : of(run.getParent());
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    long getChangedAt() {
+        return changedAt;
+    }
+
+    void changed() {
+        changedAt = System.currentTimeMillis();
+        generation.incrementAndGet();
+    }
+}
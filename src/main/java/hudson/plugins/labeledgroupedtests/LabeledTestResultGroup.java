@@ -43,6 +43,7 @@ import java.util.logging.Logger;
  */
 @ExportedBean
 public class LabeledTestResultGroup extends MetaTabulatedResult {
+    private static final long serialVersionUID = 1L;
 
     /**
      * We expect a maximum of one AbstractTestResult per parser class. 
@@ -58,13 +59,61 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
     protected float duration = 0;
     protected TestResult parent; // TODO: This should be transient.
     protected String description = "";
+    /** The counts above need a full recount. Only touched with our lock held. */
     protected transient boolean cacheDirty = true;
     protected Map<String, TestResult> childrenByName;
     protected Map<TestResult, String> nameToChildMap;
     protected boolean namesHaveBeenSet = false; 
+    private transient volatile CountDiffs diffs;
+    /**
+     * What the getters read. The fields above are only changed with our lock
+     * held, and each change clears this; the next reader takes a fresh copy.
+     */
+    private transient volatile Snapshot snapshot;
+    /**
+     * The same results as {@link #children}, by identity, so adding doesn't
+     * have to search the list. Built when first needed; guarded by our lock.
+     */
+    private transient IdentityHashMap<TestResult, Boolean> members;
+    /**
+     * Children that have already been tallied and hooked up to us and to
+     * {@link #talliedFor}. Nothing about them changes afterwards, so a later
+     * tally only has to add up their counts. Guarded by our lock.
+     */
+    private transient IdentityHashMap<TestResult, Boolean> tallied;
+    private transient AbstractTestResultAction talliedFor;
+    /** Goes up every time our counts change */
+    private transient volatile int generation;
 
     private static final Logger LOGGER = Logger.getLogger(LabeledTestResultGroup.class.getName());
 
+    /**
+     * The counts and children of a group as of one moment, never changed
+     * afterwards, so any number of threads can read it without locking and
+     * without seeing a tally half done.
+     */
+    static final class Snapshot {
+        final int passCount;
+        final int failCount;
+        final int skipCount;
+        final int totalCount;
+        final float duration;
+        final List<TestResult> children;
+        final List<TestResult> childrenWithFailures;
+        final List<TestResult> passedChildren;
+
+        private Snapshot(LabeledTestResultGroup group) {
+            passCount = group.passCount;
+            failCount = group.failCount;
+            skipCount = group.skipCount;
+            totalCount = group.totalCount;
+            duration = group.duration;
+            children = Collections.unmodifiableList(new ArrayList<TestResult>(group.children));
+            childrenWithFailures = Collections.unmodifiableList(new ArrayList<TestResult>(group.childrenWithFailures));
+            passedChildren = Collections.unmodifiableList(new ArrayList<TestResult>(group.passedChildren));
+        }
+    }
+
     public LabeledTestResultGroup() {
         this(null, "unlabeled", new ArrayList<TestResult>());
     }
@@ -82,32 +131,41 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
     }
 
     @Override
-    public void setParentAction(AbstractTestResultAction action) {
+    public synchronized void setParentAction(AbstractTestResultAction action) {
         for (TestResult result : children) {
             result.setParentAction(action);
         }
+        if (tallied != null) {
+            talliedFor = action;
+        }
     }
 
 
     @Exported(visibility=99)
     @Override
     public int getPassCount() {
-        if (cacheDirty) updateCache();
-        return passCount;
+        return snapshot().passCount;
     }
 
     @Exported(visibility=99)
     @Override
     public int getSkipCount() {
-        if (cacheDirty) updateCache();
-        return skipCount;
+        return snapshot().skipCount;
     }
 
     @Exported(visibility=99)
     @Override
     public int getFailCount() {
-        if (cacheDirty) updateCache();
-        return failCount; 
+        return snapshot().failCount;
+    }
+
+    /**
+     * Read from one snapshot, rather than adding up three reads that may each
+     * see a different tally.
+     */
+    @Override
+    public int getTotalCount() {
+        return snapshot().totalCount;
     }
 
     @Exported(visibility=99)
@@ -121,7 +179,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
     }
 
     public String getDisplayNameForChild(TestResult c) {
-        if (!namesHaveBeenSet) lockInNames();
+        if (!namesHaveBeenSet) ensureNames();
 
         String niceName = nameToChildMap.get(c);
         if (niceName == null) {
@@ -134,6 +192,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
     }
 
     public TestResult getChildByIndex(int i) {
+        List<TestResult> children = snapshot().children;
         if (i < 0 || i >= children.size()) {
             String msg = "Requested child with index " + i + " but only " + children.size() + "children exist";
             LOGGER.severe(msg);
@@ -144,7 +203,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
-        if (cacheDirty) updateCache();
+        snapshot(); // makes sure the children are tallied and know their parent
         if (!namesHaveBeenSet) {
             String msg = "trouble: we're in LabeledTestResultGroup.getDynamic, but we haven't created a name map yet.";
             LOGGER.severe(msg);
@@ -172,18 +231,56 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
         childrenWithFailures =  new ArrayList<TestResult>();
         passedChildren = new ArrayList<TestResult>();
         // TODO: should I lockInNames here? Probably. 
-        updateCache();
+        // Don't tally yet: our parent isn't hooked up to its action, and
+        // nobody may ever ask for our counts.
+        cacheDirty = true;
         return this;
     }
 
 
+    /**
+     * Bring our counts up to date. If nothing was added behind our back and
+     * we're still hooked up to the same action, they already are.
+     */
     @Override
-    public void tally() {
-        // Always update, even if the cache isn't marked dirty.
-        updateCache();
+    public synchronized void tally() {
+        if (cacheDirty || tallied == null || talliedFor != currentAction()) {
+            updateCache();
+        }
+    }
+
+    /**
+     * @return a number that changes whenever our counts do
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    private AbstractTestResultAction currentAction() {
+        return (parent == null ? null : parent.getTestResultAction()); // not cool, but when we're in readResolve, we don't have much choice.
     }
 
-    protected void updateCache() {
+    /**
+     * The current snapshot, taking a new one if something changed since the last.
+     */
+    private Snapshot snapshot() {
+        Snapshot s = snapshot;
+        return (s != null) ? s : publish();
+    }
+
+    private synchronized Snapshot publish() {
+        if (snapshot == null) {
+            if (cacheDirty) {
+                updateCache();
+            } else {
+                snapshot = new Snapshot(this);
+            }
+        }
+        return snapshot;
+    }
+
+    protected synchronized void updateCache() {
+        int lastTotal = totalCount;
         // clean out all resutls
         failCount = 0;
         skipCount = 0;
@@ -191,46 +288,88 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
         totalCount = 0;
         childrenWithFailures.clear();
         passedChildren.clear();
-        AbstractTestResultAction parentAction =
-                (parent == null ? null : parent.getTestResultAction()); // not cool, but when we're in readResolve, we don't have much choice.
-        float durationAccum = 0.0f;
+        duration = 0.0f;
+        AbstractTestResultAction parentAction = currentAction();
+        if (tallied == null || talliedFor != parentAction) {
+            tallied = new IdentityHashMap<TestResult, Boolean>(children.size() * 2);
+            talliedFor = parentAction;
+        }
+        tallyInParallel(lastTotal, parentAction);
+        for (TestResult r : children) {
+            count(r, parentAction);
+        }
+        cacheDirty = false;
+        snapshot = new Snapshot(this);
+    }
+
+    /**
+     * For a big group, tally the children we haven't seen yet on several
+     * threads, so all that's left for {@link #count} is adding them up.
+     */
+    private void tallyInParallel(int lastTotal, final AbstractTestResultAction parentAction) {
+        List<TestResult> untallied = new ArrayList<TestResult>();
         for (TestResult r : children) {
+            if (!tallied.containsKey(r)) {
+                untallied.add(r);
+            }
+        }
+        if (!ParallelTally.isWorthIt(lastTotal, untallied.size())) {
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>(untallied.size());
+        for (final TestResult r : untallied) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    r.setParentAction(parentAction);
+                    r.setParent(LabeledTestResultGroup.this);
+                    r.tally();
+                }
+            });
+        }
+        ParallelTally.runAll(tasks);
+        for (TestResult r : untallied) {
+            tallied.put(r, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Tally one child, unless that's already been done, and add it to our counts.
+     */
+    private void count(TestResult r, AbstractTestResultAction parentAction) {
+        if (tallied.put(r, Boolean.TRUE) == null) {
             r.setParentAction(parentAction);
             r.setParent(this);
             r.tally();
-            durationAccum += r.getDuration();
-            passCount += r.getPassCount();
-            failCount += r.getFailCount();
-            skipCount += r.getSkipCount(); 
-            if (r.isPassed()) {
-                passedChildren.add(r);
-            } else if (r.getFailCount() > 0) {
-                childrenWithFailures.add(r);
-            } 
-        }
-
-        duration = durationAccum;
-        totalCount = passCount + failCount + skipCount; 
-        cacheDirty = false;
+        }
+        duration += r.getDuration();
+        passCount += r.getPassCount();
+        failCount += r.getFailCount();
+        skipCount += r.getSkipCount();
+        if (r.isPassed()) {
+            passedChildren.add(r);
+        } else if (r.getFailCount() > 0) {
+            childrenWithFailures.add(r);
+        }
+        totalCount = passCount + failCount + skipCount;
+        diffs = null;
+        snapshot = null;
+        generation++;
     }
 
     @Override
     public Collection<? extends TestResult> getFailedTests() {
-        if (cacheDirty) updateCache();
-        return childrenWithFailures;
+        return snapshot().childrenWithFailures;
     }
 
     @Exported(visibility=99)
     @Override
     public Collection<? extends TestResult> getChildren() {
-        if (cacheDirty) updateCache();
-        return children; 
+        return snapshot().children;
     }
 
     @Override
     public boolean hasChildren() {
-        if (cacheDirty) updateCache();
-        return children.size() > 0;
+        return !snapshot().children.isEmpty();
     }
     
     @Override
@@ -246,8 +385,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public float getDuration() {
-        if (cacheDirty) updateCache();
-        return duration; 
+        return snapshot().duration;
     }
 
     @Exported(visibility=99)
@@ -260,10 +398,34 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
      * @param result
      */
     public void addResult(TestResult result) {
-        if (!children.contains(result)) {
-            children.add(result);
-            cacheDirty = true;
+        add(result);
+    }
+
+    /**
+     * Add the result, unless we've already got it. If our counts are up to
+     * date, only the new result is tallied into them.
+     *
+     * @return true if the result was added
+     */
+    synchronized boolean add(TestResult result) {
+        if (members == null) {
+            members = new IdentityHashMap<TestResult, Boolean>(children.size() * 2);
+            for (TestResult r : children) {
+                members.put(r, Boolean.TRUE);
+            }
+        }
+        if (members.put(result, Boolean.TRUE) != null) {
+            return false;
+        }
+        children.add(result);
+        if (cacheDirty) {
+            snapshot = null;
+        } else if (talliedFor != currentAction()) {
+            updateCache();
+        } else {
+            count(result, talliedFor);
         }
+        return true;
     }
 
     /**
@@ -272,16 +434,18 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
      */
     public void addAll(LabeledTestResultGroup group) {
         for (TestResult r : group.getChildren()) {
-            if (!children.contains(r)) {
-                children.add(r);
-                cacheDirty = true;
-            }
+            add(r);
         }
     }
 
 
     @Override
     public TestResult getPreviousResult() {
+        MetaLabeledTestResultGroupAction action = getMetaAction();
+        if (action != null) {
+            MetaLabeledTestResultGroupAction prev = action.getPreviousAction();
+            return (prev == null) ? null : prev.getLabeledTestResultGroup(label);
+        }
         if (parent==null) {
             LOGGER.warning("Can't getPreviousResult; parent was null."); 
             return null;
@@ -334,6 +498,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public TestResult findCorrespondingResult(String id) {
+        snapshot(); // makes sure the children are tallied and know their parent
         String childName;
         String remainingId = null;
         int childNameEnd = id.indexOf('/');
@@ -361,36 +526,127 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public String toPrettyString() {
-        if (cacheDirty) updateCache();
         StringBuilder sb = new StringBuilder();
-        for (TestResult r: children) {
+        for (TestResult r: snapshot().children) {
             sb.append("\t").append(label); sb.append(": ").append(r.toPrettyString());
         }
         return sb.toString();
     }
 
     public int getPassDiff() {
-        TestResult prev = getPreviousResult();
-        if (prev==null) return getPassCount();
-        return getPassCount() - prev.getPassCount();
+        return getDiffs().passDiff;
     }
 
     public int getSkipDiff() {
-        TestResult prev = getPreviousResult();
-        if (prev==null) return getSkipCount();
-        return getSkipCount() - prev.getSkipCount();
+        return getDiffs().skipDiff;
     }
 
     public int getFailDiff() {
-        TestResult prev = getPreviousResult();
-        if (prev==null) return getFailCount();
-        return getFailCount() - prev.getFailCount();
+        return getDiffs().failDiff;
     }
 
     public int getTotalDiff() {
-        TestResult prev = getPreviousResult();
-        if (prev==null) return getTotalCount();
-        return getTotalCount() - prev.getTotalCount();
+        return getDiffs().totalDiff;
+    }
+
+    /**
+     * The build in which this label started failing, from the {@link FailureAgeIndex}.
+     * For builds that completed before failure ages were recorded, we only know
+     * it's been failing since at least this build.
+     *
+     * @return 0 if this group is passing
+     */
+    @Override
+    public int getFailedSince() {
+        if (getFailCount() == 0) return 0;
+        MetaLabeledTestResultGroupAction action = getMetaAction();
+        if (action == null) return 0;
+        ResultSummary summary = action.getSummary();
+        ResultSummary.LabelSummary ls = summary.getLabel(label);
+        if (summary.hasFailureAges() && ls != null && ls.getFailedSince() > 0) {
+            return ls.getFailedSince();
+        }
+        return action.run.getNumber();
+    }
+
+    @Override
+    public Run<?,?> getFailedSinceRun() {
+        int since = getFailedSince();
+        if (since == 0) return null;
+        return getMetaAction().run.getParent().getBuildByNumber(since);
+    }
+
+    /**
+     * @return how many builds this label has been failing for, counting this one, or 0 if it passed
+     */
+    public int getAge() {
+        int since = getFailedSince();
+        if (since == 0) return 0;
+        return getMetaAction().run.getNumber() - since + 1;
+    }
+
+    /**
+     * The build in which one of our failing tests started failing. This is
+     * only known for the latest build the {@link FailureAgeIndex} has seen.
+     *
+     * @return 0 if that test isn't failing, or if we don't know when it started
+     */
+    public int getFailedSince(TestResult test) {
+        MetaLabeledTestResultGroupAction action = getMetaAction();
+        if (action == null) return 0;
+        return FailureAgeIndex.getFailedSince(action, label, test.getId());
+    }
+
+    /**
+     * The action this group's result belongs to, if it's one of ours.
+     */
+    private MetaLabeledTestResultGroupAction getMetaAction() {
+        if (parent == null) return null;
+        AbstractTestResultAction action = parent.getTestResultAction();
+        if (action instanceof MetaLabeledTestResultGroupAction) {
+            return (MetaLabeledTestResultGroupAction) action;
+        }
+        return null;
+    }
+
+    /**
+     * Worked out once for all four diffs: taken from our own summary if it was
+     * diffed against the build that's still the previous one, otherwise from
+     * the previous build's summary rather than its full result, when we can.
+     */
+    private CountDiffs getDiffs() {
+        CountDiffs d = diffs;
+        if (d == null || !d.isCurrent()) {
+            Snapshot s = snapshot(); // all four counts from the same tally
+            MetaLabeledTestResultGroupAction action = getMetaAction();
+            JobHistory history = JobHistory.of(action != null ? action.run : getOwner());
+            long generation = history.getGeneration();
+            if (action != null) {
+                MetaLabeledTestResultGroupAction prevAction = action.getPreviousAction();
+                ResultSummary own = action.peekSummary();
+                ResultSummary.LabelSummary ownLabel = (own == null) ? null : own.getLabel(label);
+                ResultSummary.LabelSummary prev;
+                if (ownLabel != null && ownLabel.hasPrevious() && own.isDiffedAgainst(prevAction)) {
+                    d = new CountDiffs(history, generation, ownLabel.getPassDiff(), ownLabel.getFailDiff(),
+                            ownLabel.getSkipDiff(), ownLabel.getTotalDiff());
+                } else if ((prev = (prevAction == null) ? null : prevAction.getSummary().getLabel(label)) == null) {
+                    d = new CountDiffs(history, generation, s.passCount, s.failCount, s.skipCount, s.totalCount);
+                } else {
+                    d = new CountDiffs(history, generation, s.passCount - prev.getPassCount(), s.failCount - prev.getFailCount(),
+                            s.skipCount - prev.getSkipCount(), s.totalCount - prev.getTotalCount());
+                }
+            } else {
+                TestResult prev = getPreviousResult();
+                if (prev == null) {
+                    d = new CountDiffs(history, generation, s.passCount, s.failCount, s.skipCount, s.totalCount);
+                } else {
+                    d = new CountDiffs(history, generation, s.passCount - prev.getPassCount(), s.failCount - prev.getFailCount(),
+                            s.skipCount - prev.getSkipCount(), s.totalCount - prev.getTotalCount());
+                }
+            }
+            diffs = d;
+        }
+        return d;
     }
 
       /**
@@ -400,7 +656,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
      * that will not be available later. See ${@link LabeledTestResultGroupPublisher :peform}
      */
 
-    public void setNameMap(HashMap<TestResult, String> resultToNameMap) {
+    public synchronized void setNameMap(HashMap<TestResult, String> resultToNameMap) {
         if (namesHaveBeenSet || (childrenByName != null) || (nameToChildMap != null)) {
             String msg = "LabeledTestResultGroup is in a bad state. setNameMap called, but we already have a name map.";
             LOGGER.severe(msg);
@@ -442,7 +698,7 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
      * drill down to chilldren of the result group even if the name map was somehow
      * lost or corrupted.
      */
-    protected void lockInNames() {
+    protected synchronized void lockInNames() {
         if (namesHaveBeenSet || (childrenByName != null) || (nameToChildMap != null)) {
             String msg = "LabeledTestResultGroup is in a bad state. lockInNames is being called, but names have already been set.";
             LOGGER.severe(msg);
@@ -465,4 +721,8 @@ public class LabeledTestResultGroup extends MetaTabulatedResult {
 
         namesHaveBeenSet = true; 
     }
+
+    private synchronized void ensureNames() {
+        if (!namesHaveBeenSet) lockInNames();
+    }
 }
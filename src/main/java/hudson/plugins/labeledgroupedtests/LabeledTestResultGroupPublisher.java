@@ -35,17 +35,29 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.tasks.junit.JUnitParser;
 import hudson.tasks.test.TestResult;
 import hudson.tasks.test.TestResultParser;
 import hudson.tasks.test.TestResultAggregator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.StreamTaskListener;
 import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
@@ -54,6 +66,34 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
     private static final Logger LOGGER = Logger.getLogger(LabeledTestResultGroupPublisher.class.getName());
     protected List<LabeledTestGroupConfiguration> configs;
     private static List<TestResultParser> testResultParsers = null;
+
+    /**
+     * How many builds back the trend graphs go, and how many points they draw.
+     * 0 means {@link MetaLabeledTestResultGroupProjectAction#TREND_DEPTH} and
+     * {@link MetaLabeledTestResultGroupProjectAction#TREND_POINTS}.
+     */
+    private int trendDepth;
+    private int trendPoints;
+
+    /**
+     * How many label/parser pairs may be parsed at once. The default of 1 parses
+     * them one after another, as this publisher always has.
+     */
+    public static int PARSER_THREADS = Integer.getInteger(LabeledTestResultGroupPublisher.class.getName() + ".parserThreads", 1);
+
+    /**
+     * When true, junit results are parsed and tallied on the agent, and only a
+     * {@link CompactTestResult} comes back to the controller. Drill-down then
+     * stops at the failed tests.
+     */
+    public static boolean PARSE_ON_AGENT = Boolean.getBoolean(LabeledTestResultGroupPublisher.class.getName() + ".parseOnAgent");
+
+    /**
+     * When true, the workspace is walked once for all file masks together, and
+     * each parser is handed the files it should read. A file matched by several
+     * masks is only given to the first of them.
+     */
+    public static boolean SINGLE_PASS_SCAN = Boolean.getBoolean(LabeledTestResultGroupPublisher.class.getName() + ".singlePassScan");
     
     @DataBoundConstructor
     public LabeledTestResultGroupPublisher(List<LabeledTestGroupConfiguration> configs) {
@@ -108,6 +148,24 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
         this.configs = configs;
     }
 
+    public int getTrendDepth() {
+        return trendDepth;
+    }
+
+    @DataBoundSetter
+    public void setTrendDepth(int trendDepth) {
+        this.trendDepth = Math.max(0, trendDepth);
+    }
+
+    public int getTrendPoints() {
+        return trendPoints;
+    }
+
+    @DataBoundSetter
+    public void setTrendPoints(int trendPoints) {
+        this.trendPoints = Math.max(0, trendPoints);
+    }
+
     @Override
     public void perform(@Nonnull Run<?, ?> build, @Nonnull FilePath workspace, @Nonnull Launcher launcher, @Nonnull TaskListener listener) throws InterruptedException, IOException {
         String startMsg = "Analyzing test results with LabeledTestResultGroupPublisher...";
@@ -118,72 +176,46 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
         final long buildTime = build.getTimestamp().getTimeInMillis();
         final long nowMaster = System.currentTimeMillis();
 
-        HashSet<String> labels = new HashSet<String>(10);
+        LinkedHashSet<String> labels = new LinkedHashSet<String>(10);
         HashMap<String, List<TestResult>> resultGroupsByLabel = new HashMap(3);
-        HashMap<TestResult, String> resultsWithName = new  HashMap<TestResult, String>(configs.size());
-
         // Roll up configs so that there is zero or one config for each label/parser pair
-        rollupConfigs(); 
+        List<LabeledTestGroupConfiguration> rolledUp = rollupConfigs();
+        HashMap<TestResult, String> resultsWithName = new  HashMap<TestResult, String>(rolledUp.size());
+
+        // What each parser actually gets to read; null where there's nothing left for it
+        List<LabeledTestGroupConfiguration> configsToParse = rolledUp;
+        if (SINGLE_PASS_SCAN) {
+            configsToParse = scanWorkspaceOnce(rolledUp, workspace, listener);
+        }
 
         // For each TestResults configuration, attempt to parse its results
         //      Invoke the parser on the specified results
         //      Label those results as the specified type (unit/smoke/regression)
         //      Include those results in an aggregrated result
-        for (LabeledTestGroupConfiguration config:configs) {
-            try {
-                String parserClassName = config.getParserClassName();
-                String label = config.getLabel();
-                labels.add(label); // adds only if not already there
-                if (!resultGroupsByLabel.containsKey(label)) {
-                    // Make a new, empty list for that label 
-                    resultGroupsByLabel.put(label, new ArrayList<TestResult>(5));
-                }
-                Collection<TestResult> listForThisLabel = resultGroupsByLabel.get(label);
-
-                ClassLoader uberLoader = Hudson.getInstance().getPluginManager().uberClassLoader;
-                Class parserClass = Class.forName(parserClassName, true, uberLoader);
-                Object parserObject = parserClass.newInstance();
-                String nameForThisResult = config.toNameString();
-
-                TestResult someResult = null;
-
-                // Actually parse the file!
-                // NB: we're calling a static method via an instance, because I can't figure out
-                // how to go from the Class object to calling a static method without an instance involved.
-                if (parserObject instanceof TestResultParser) {
-                    TestResultParser parser = (TestResultParser) parserObject;
-                    someResult = parser.parseResult(config.getTestResultFileMask(), build, workspace, launcher, listener);
-                } else {
-                    LOGGER.warning("Couldn't find a parser for class: " + parserClassName);
-                    listener.getLogger().println("Couldn't find a parser for class: " + parserClassName);
-                    continue;
-                }
-
-                if (someResult != null) {
-                    listForThisLabel.add(someResult);
-                    resultsWithName.put(someResult, nameForThisResult);
-                    String msg = "Here's your result: " + someResult.toPrettyString();
-                    listener.getLogger().println(msg);
-                    LOGGER.fine(msg);
-
-                } else {
-                    String msg =  "Trouble while parsing results for " + config.getTestResultFileMask() + "-- couldn't parse results.";
-                    LOGGER.warning(msg);
-                    listener.getLogger().println(msg);
-                }
+        List<TestResult> parsedResults;
+        if (PARSER_THREADS > 1 && rolledUp.size() > 1) {
+            parsedResults = parseConfigsInParallel(configsToParse, build, workspace, launcher, listener);
+        } else {
+            parsedResults = new ArrayList<TestResult>(rolledUp.size());
+            for (LabeledTestGroupConfiguration config:configsToParse) {
+                parsedResults.add(config == null ? null : parseConfig(config, build, workspace, launcher, listener));
+            }
+        }
 
-            } catch (IOException e) {
-                LOGGER.warning("While processing config " + config.toString() + ":" + e.getMessage());
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                LOGGER.warning("Couldn't find parser while processing config " + config.toString() + ":" + e.getMessage());
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                LOGGER.warning("Couldn't get an instance of parser while processing config " + config.toString() + ":" + e.getMessage());
-                e.printStackTrace();
-            } catch (InstantiationException e) {
-                LOGGER.warning("Couldn't get an instance of parser while processing config " + config.toString() + ":" + e.getMessage());
-                e.printStackTrace();
+        // Merge in config order, so the groups come out the same no matter
+        // which parser happened to finish first.
+        for (int i = 0; i < rolledUp.size(); i++) {
+            LabeledTestGroupConfiguration config = rolledUp.get(i);
+            String label = config.getLabel();
+            labels.add(label); // adds only if not already there
+            if (!resultGroupsByLabel.containsKey(label)) {
+                // Make a new, empty list for that label 
+                resultGroupsByLabel.put(label, new ArrayList<TestResult>(5));
+            }
+            TestResult someResult = parsedResults.get(i);
+            if (someResult != null) {
+                resultGroupsByLabel.get(label).add(someResult);
+                resultsWithName.put(someResult, config.toNameString());
             }
         }
 
@@ -199,8 +231,7 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
         MetaLabeledTestResultGroupAction action = new MetaLabeledTestResultGroupAction(build, resultGroup, listener);
         build.addAction(action);
         resultGroup.setParentAction(action);
-        
-        resultGroup.tally();
+        // No need to tally: the counts were kept up to date as the groups went in.
 
         Result healthResult = determineBuildHealth(build, resultGroup);
         // Parsers can only decide to make the build worse than it currently is, never better.
@@ -215,12 +246,222 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
     }
 
     /**
-     * Roll up configs so that there is zero or one config for each label/parser pair
+     * Parse the results for a single label/parser pair.
+     *
+     * @return the parsed result, or null if there was trouble. The trouble has
+     * already been reported to the listener. A parser that blows up only loses
+     * its own result, whether or not the configs are parsed in parallel.
+     */
+    private TestResult parseConfig(LabeledTestGroupConfiguration config, Run<?, ?> build, FilePath workspace,
+                                   Launcher launcher, TaskListener listener) throws InterruptedException {
+        try {
+            String parserClassName = config.getParserClassName();
+            ClassLoader uberLoader = Hudson.getInstance().getPluginManager().uberClassLoader;
+            Class parserClass = Class.forName(parserClassName, true, uberLoader);
+            Object parserObject = parserClass.newInstance();
+
+            TestResult someResult = null;
+
+            // Actually parse the file!
+            // NB: we're calling a static method via an instance, because I can't figure out
+            // how to go from the Class object to calling a static method without an instance involved.
+            if (PARSE_ON_AGENT && JUnitParser.class.getName().equals(parserClassName)) {
+                // Parse and tally where the files are, and bring back only the summary
+                long buildTime = build.getTimestamp().getTimeInMillis();
+                someResult = workspace.act(new CompactTestResultCallable(config.getTestResultFileMask(),
+                        config.toNameString(), buildTime, System.currentTimeMillis(), listener));
+            } else if (parserObject instanceof TestResultParser) {
+                TestResultParser parser = (TestResultParser) parserObject;
+                someResult = parser.parseResult(config.getTestResultFileMask(), build, workspace, launcher, listener);
+            } else {
+                LOGGER.warning("Couldn't find a parser for class: " + parserClassName);
+                listener.getLogger().println("Couldn't find a parser for class: " + parserClassName);
+                return null;
+            }
+
+            if (someResult != null) {
+                String msg = "Here's your result: " + someResult.toPrettyString();
+                listener.getLogger().println(msg);
+                LOGGER.fine(msg);
+            } else {
+                String msg =  "Trouble while parsing results for " + config.getTestResultFileMask() + "-- couldn't parse results.";
+                LOGGER.warning(msg);
+                listener.getLogger().println(msg);
+            }
+            return someResult;
+
+        } catch (IOException e) {
+            LOGGER.warning("While processing config " + config.toString() + ":" + e.getMessage());
+            e.printStackTrace();
+        } catch (ClassNotFoundException e) {
+            LOGGER.warning("Couldn't find parser while processing config " + config.toString() + ":" + e.getMessage());
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            LOGGER.warning("Couldn't get an instance of parser while processing config " + config.toString() + ":" + e.getMessage());
+            e.printStackTrace();
+        } catch (InstantiationException e) {
+            LOGGER.warning("Couldn't get an instance of parser while processing config " + config.toString() + ":" + e.getMessage());
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            String msg = "Trouble while parsing results for " + config.getTestResultFileMask() + "-- " + e;
+            LOGGER.log(Level.WARNING, msg, e);
+            listener.getLogger().println(msg);
+        }
+        return null;
+    }
+
+    /**
+     * Parse every config on a bounded pool of at most {@link #PARSER_THREADS} workers.
+     * Each config logs into its own buffer, and the buffers are copied to the
+     * real listener in config order, so the console reads the same as a sequential run.
+     * A config that blows up only loses its own result.
+     *
+     * @return one entry per config, in config order; null where parsing failed.
+     */
+    private List<TestResult> parseConfigsInParallel(List<LabeledTestGroupConfiguration> configs,
+                                                    final Run<?, ?> build, final FilePath workspace,
+                                                    final Launcher launcher, TaskListener listener) throws InterruptedException {
+        int poolSize = Math.min(PARSER_THREADS, configs.size());
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory());
+        List<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>(configs.size());
+        List<Future<TestResult>> futures = new ArrayList<Future<TestResult>>(configs.size());
+        try {
+            for (final LabeledTestGroupConfiguration config : configs) {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                final StreamTaskListener configListener = new StreamTaskListener(log);
+                logs.add(log);
+                futures.add(pool.submit(new Callable<TestResult>() {
+                    public TestResult call() throws Exception {
+                        if (config == null) {
+                            return null;
+                        }
+                        try {
+                            return parseConfig(config, build, workspace, launcher, configListener);
+                        } finally {
+                            configListener.getLogger().flush();
+                        }
+                    }
+                }));
+            }
+
+            List<TestResult> results = new ArrayList<TestResult>(configs.size());
+            for (int i = 0; i < configs.size(); i++) {
+                TestResult someResult = null;
+                try {
+                    someResult = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    String msg = "Trouble while parsing results for " + configs.get(i).getTestResultFileMask()
+                            + "-- " + e.getCause();
+                    LOGGER.log(Level.WARNING, msg, e.getCause());
+                    PrintStream logger = new PrintStream(logs.get(i));
+                    logger.println(msg);
+                    logger.flush();
+                }
+                byte[] output = logs.get(i).toByteArray();
+                listener.getLogger().write(output, 0, output.length);
+                results.add(someResult);
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Walk the workspace once for the file masks of every config, and turn each
+     * config's mask into the list of files it matched. That way each parser only
+     * looks at the files it was given, instead of globbing the workspace again.
+     * A file matched by more than one config goes to the first one, and the
+     * overlap is reported on the console.
+     *
+     * @return one entry per config, in config order. The entry is null if all of
+     * the config's files were already claimed by an earlier config.
+     */
+    private List<LabeledTestGroupConfiguration> scanWorkspaceOnce(List<LabeledTestGroupConfiguration> configs,
+                                                                  FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        List<String> fileMasks = new ArrayList<String>(configs.size());
+        for (LabeledTestGroupConfiguration config : configs) {
+            fileMasks.add(config.getTestResultFileMask());
+        }
+        WorkspaceScanCallable.Scan scan = workspace.act(new WorkspaceScanCallable(fileMasks));
+
+        for (Map.Entry<String, List<Integer>> overlap : scan.overlaps.entrySet()) {
+            StringBuilder msg = new StringBuilder("Test report ").append(overlap.getKey()).append(" is matched by");
+            for (int i : overlap.getValue()) {
+                LabeledTestGroupConfiguration config = configs.get(i);
+                msg.append(" [").append(config.getLabel()).append('/').append(config.toNameString())
+                        .append(": ").append(config.getTestResultFileMask()).append(']');
+            }
+            msg.append("; only the first will parse it.");
+            listener.getLogger().println(msg);
+            LOGGER.fine(msg.toString());
+        }
+
+        List<LabeledTestGroupConfiguration> resolved = new ArrayList<LabeledTestGroupConfiguration>(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            LabeledTestGroupConfiguration config = configs.get(i);
+            List<String> files = scan.files.get(i);
+            if (files.isEmpty()) {
+                if (!claimedElsewhere(scan, i)) {
+                    // Nothing matched at all; let the parser complain the way it always has
+                    resolved.add(config);
+                } else {
+                    listener.getLogger().println("All test reports for " + config.getTestResultFileMask()
+                            + " were already parsed under another label; skipping.");
+                    resolved.add(null);
+                }
+                continue;
+            }
+            StringBuilder mask = new StringBuilder();
+            for (String file : files) {
+                if (!isLiteralPath(file)) {
+                    mask = null;
+                    break;
+                }
+                if (mask.length() > 0) mask.append(',');
+                mask.append(file);
+            }
+            resolved.add(mask == null ? config
+                    : new LabeledTestGroupConfiguration(config.getParserClassName(), mask.toString(), config.getLabel()));
+        }
+        return resolved;
+    }
+
+    private static boolean claimedElsewhere(WorkspaceScanCallable.Scan scan, int configIndex) {
+        for (List<Integer> owners : scan.overlaps.values()) {
+            if (owners.indexOf(configIndex) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a file name survives being put back into a file mask as-is.
+     * Anything that the mask syntax would read as a separator or a wildcard
+     * doesn't, and then we fall back to the config's own mask.
+     */
+    private static boolean isLiteralPath(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == ',' || c == '*' || c == '?' || Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Roll up configs so that there is zero or one config for each label/parser pair.
+     * The configured list itself is left alone, since concurrent builds of the
+     * job share it.
      */
-    private void rollupConfigs() {
+    private List<LabeledTestGroupConfiguration> rollupConfigs() {
         // Build a unique list of labels and a unique list of parsers
-        HashSet<String> parserNames = new HashSet<String>();
-        HashSet<String> labelsInUse = new HashSet<String>();
+        // (Linked, so that the rolled-up configs come out in a predictable order.)
+        LinkedHashSet<String> parserNames = new LinkedHashSet<String>();
+        LinkedHashSet<String> labelsInUse = new LinkedHashSet<String>();
         for (LabeledTestGroupConfiguration config:configs) {
             parserNames.add(config.getParserClassName());
             labelsInUse.add(config.getLabel());
@@ -254,8 +495,7 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
             }
         }
 
-        // Now replace the old set of configs with the new, smaller one we just built. 
-        this.configs = newConfigs; 
+        return newConfigs;
     }
 
 
@@ -275,7 +515,7 @@ public class LabeledTestResultGroupPublisher extends Recorder implements Seriali
 
 	@Override
 	public Action getProjectAction(AbstractProject<?, ?> project) {
-		return new MetaLabeledTestResultGroupProjectAction(project);
+		return new MetaLabeledTestResultGroupProjectAction(project, this);
 	}
 
     @Extension
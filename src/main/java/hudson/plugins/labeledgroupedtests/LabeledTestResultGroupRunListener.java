@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps the labeled test results of builds in step with the builds themselves.
+ */
+@Extension
+public class LabeledTestResultGroupRunListener extends RunListener<Run> {
+
+    public LabeledTestResultGroupRunListener() {
+        super(Run.class);
+    }
+
+    /**
+     * Make sure a result written in the background is on disk before the
+     * build is finalized, and bring the failure ages, trends and the project's
+     * latest result up to date with it. Anything worked out from the previous
+     * build before this one had completed is then worked out again.
+     */
+    @Override
+    public void onCompleted(Run r, TaskListener listener) {
+        MetaLabeledTestResultGroupAction action = r.getAction(MetaLabeledTestResultGroupAction.class);
+        LastResult.completed(r, action);
+        if (action == null) {
+            // Builds with plain test results still show up on the "unit" trend
+            TrendStore store = TrendStore.peek(r.getParent());
+            if (store != null) {
+                store.record(r);
+            }
+            return;
+        }
+        try {
+            action.flush(listener);
+        } catch (InterruptedException e) {
+            // The write carries on without us, and the result stays in memory until it's done.
+            listener.getLogger().println("Interrupted while waiting for the test result to be saved");
+            Thread.currentThread().interrupt();
+        }
+        MetaLabeledTestResultGroup result = action.getResult();
+        if (result != null) {
+            FailureAgeIndex.record(action, result);
+        }
+        TrendStore.get(r.getParent()).record(r);
+        JobHistory.of(r.getParent()).changed();
+    }
+
+    /**
+     * Forget whatever was worked out from the deleted build, by anyone.
+     */
+    @Override
+    public void onDeleted(Run r) {
+        JobHistory.of(r.getParent()).changed();
+        LastResult.forget(r.getParent());
+        ResultCache.get().remove(r);
+        TrendStore store = TrendStore.peek(r.getParent());
+        if (store != null) {
+            store.remove(r.getNumber());
+        }
+    }
+}
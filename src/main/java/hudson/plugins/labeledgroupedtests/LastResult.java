@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Which build of a project has the latest labeled test results, and the
+ * labels it had, so the project page doesn't walk back through the builds
+ * for them. Kept current by {@link LabeledTestResultGroupRunListener}; a
+ * project is only walked the first time, and again after a deletion.
+ */
+final class LastResult {
+    private static final Map<Job<?, ?>, LastResult> LAST = new WeakHashMap<Job<?, ?>, LastResult>();
+
+    /** How many builds of each project have completed; guarded by {@link #LAST} */
+    private static final Map<Job<?, ?>, Long> COMPLETIONS = new WeakHashMap<Job<?, ?>, Long>();
+
+    /**
+     * How often to walk a project again when builds of it keep completing
+     * while we walk; after that, the last walk is used without remembering it.
+     */
+    private static final int WALKS = 3;
+
+    /** For projects with no results to show */
+    private static final LastResult NONE = new LastResult(0, Collections.<String>emptyList());
+
+    /** The build's number, or 0 if there is none */
+    final int number;
+    final Collection<String> labels;
+
+    private LastResult(int number, Collection<String> labels) {
+        this.number = number;
+        this.labels = labels;
+    }
+
+    private static LastResult of(MetaLabeledTestResultGroupAction action) {
+        return new LastResult(action.run.getNumber(),
+                Collections.unmodifiableList(new ArrayList<String>(action.getLabels())));
+    }
+
+    /**
+     * The latest build's results, or null if the project has none to show.
+     */
+    static MetaLabeledTestResultGroupAction getAction(AbstractProject<?, ?> project) {
+        LastResult last = get(project);
+        MetaLabeledTestResultGroupAction action = last.load(project);
+        if (action == null && last != NONE) {
+            // The build went away without us hearing about it
+            forget(project);
+            action = get(project).load(project);
+        }
+        return action;
+    }
+
+    static LastResult get(AbstractProject<?, ?> project) {
+        LastResult walked = NONE;
+        for (int i = 0; i < WALKS; i++) {
+            long seen;
+            synchronized (LAST) {
+                LastResult last = LAST.get(project);
+                if (last != null) {
+                    return last;
+                }
+                seen = completions(project);
+            }
+            walked = walk(project);
+            synchronized (LAST) {
+                LastResult last = LAST.get(project);
+                if (last != null) {
+                    return last;
+                }
+                if (completions(project) == seen) {
+                    LAST.put(project, walked);
+                    return walked;
+                }
+                // A build completed while we were walking; it may be one we
+                // skipped because it was still running, so walk again.
+            }
+        }
+        return walked;
+    }
+
+    /** Called holding {@link #LAST} */
+    private static long completions(Job<?, ?> job) {
+        Long n = COMPLETIONS.get(job);
+        return n == null ? 0 : n;
+    }
+
+    private MetaLabeledTestResultGroupAction load(AbstractProject<?, ?> project) {
+        if (number == 0) {
+            return null;
+        }
+        AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+        return build == null ? null : build.getAction(MetaLabeledTestResultGroupAction.class);
+    }
+
+    private static LastResult walk(AbstractProject<?, ?> project) {
+        final AbstractBuild<?,?> tb = project.getLastSuccessfulBuild();
+
+        AbstractBuild<?,?> b=project.getLastBuild();
+        while(b!=null) {
+            // A running build may already have published, but it isn't done:
+            // it's picked up by completed() when it is
+            MetaLabeledTestResultGroupAction a = b.isBuilding() ? null : b.getAction(MetaLabeledTestResultGroupAction.class);
+            if(a!=null) return of(a);
+            if(b==tb)
+                // if even the last successful build didn't produce the test result,
+                // that means we just don't have any tests configured.
+                return NONE;
+            b = b.getPreviousBuild();
+        }
+
+        return NONE;
+    }
+
+    /**
+     * A build has completed: if it has results, it's the latest one to.
+     */
+    static void completed(Run<?, ?> r, MetaLabeledTestResultGroupAction action) {
+        synchronized (LAST) {
+            COMPLETIONS.put(r.getParent(), completions(r.getParent()) + 1);
+            LastResult last = LAST.get(r.getParent());
+            if (last == null || last.number > r.getNumber()) {
+                // Not looked at yet, or we already know of a later one
+                return;
+            }
+            if (action != null) {
+                LAST.put(r.getParent(), of(action));
+            } else if (r.getResult() != null && r.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+                // A later successful build without results means there's nothing to show
+                LAST.put(r.getParent(), NONE);
+            }
+        }
+    }
+
+    static void forget(Job<?, ?> job) {
+        synchronized (LAST) {
+            LAST.remove(job);
+        }
+    }
+}
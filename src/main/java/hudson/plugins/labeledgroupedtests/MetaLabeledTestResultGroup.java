@@ -37,6 +37,7 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.Collections;
 
@@ -47,26 +48,129 @@ import java.util.Collections;
  */
 @ExportedBean
 public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
+    private static final long serialVersionUID = 1L;
 
     protected Map<String, LabeledTestResultGroup> childrenByLabel;
-    protected transient Map<String, Collection<TestResult>> failedTestsByLabel;
-    protected transient Map<String, Collection<TestResult>> passedTestsByLabel;
-    protected transient Map<String, Collection<TestResult>> skippedTestsByLabel;
-    protected transient Collection<TestResult> allFailedTests;
-    protected transient Collection<TestResult> allPassedTests;
-    protected transient Collection<TestResult> allSkippedTests;
     protected int failCount = 0;
     protected int skipCount = 0;
     protected int passCount = 0;
     protected int totalCount = 0; 
     protected float duration = 0; 
-    protected transient boolean cacheDirty = true;                                                     
+    /** The counts above need a full recount. Only touched with our lock held. */
+    protected transient boolean cacheDirty = true;
     protected transient MetaLabeledTestResultGroupAction parentAction = null;
     protected String description = "";
     
     /** Effectively overrides TestObject.id, by overriding the accessors */
     protected String groupId = ""; 
 
+    /**
+     * Only set in a manifest written by {@link SplitResultStore}: the labels whose
+     * groups live in their own files. The counts above are then already tallied.
+     */
+    protected volatile List<String> storedLabels;
+    /** Labels from {@link #storedLabels} whose groups haven't been loaded yet */
+    protected transient Set<String> unloadedLabels;
+    protected transient GroupLoader groupLoader;
+    private transient volatile CountDiffs diffs;
+    /**
+     * What the getters read. Everything above is only changed with our lock
+     * held, and each change clears this; the next reader takes a fresh copy.
+     */
+    private transient volatile Snapshot snapshot;
+    /**
+     * The {@link LabeledTestResultGroup#getGeneration() generation} of each
+     * group as of when its counts went into ours. Guarded by our lock.
+     */
+    private transient Map<LabeledTestResultGroup, Integer> countedGenerations;
+
+    /**
+     * The counts, groups and children as of one moment, never changed
+     * afterwards, so any number of threads can read it without locking and
+     * without seeing a tally half done.
+     *
+     * The failed, passed and skipped tests can be big, so they're only
+     * gathered the first time someone asks. Two threads asking at once may
+     * both gather them; they get equal lists.
+     */
+    static final class Snapshot {
+        final int passCount;
+        final int failCount;
+        final int skipCount;
+        final int totalCount;
+        final float duration;
+        final Map<String, LabeledTestResultGroup> groups;
+        /** The children of all the groups, one after the other */
+        final Collection<TestResult> children;
+        private volatile Collection<TestResult> failedTests;
+        private volatile Collection<TestResult> passedTests;
+        private volatile Collection<TestResult> skippedTests;
+        /**
+         * Full id to result, for every id anyone has found, so the walk over
+         * the history for one test costs one map lookup per build after the
+         * first time. Ids that weren't found aren't kept: anyone can make up
+         * as many of those as they like, while found ones are bounded by
+         * the results we hold.
+         */
+        final ConcurrentHashMap<String, TestResult> resultsById = new ConcurrentHashMap<String, TestResult>();
+
+        private Snapshot(MetaLabeledTestResultGroup r) {
+            passCount = r.passCount;
+            failCount = r.failCount;
+            skipCount = r.skipCount;
+            totalCount = r.totalCount;
+            duration = r.duration;
+            groups = Collections.unmodifiableMap(new LinkedHashMap<String, LabeledTestResultGroup>(r.childrenByLabel));
+            children = Collections.unmodifiableCollection(r.flattenTopTier(groups.values()));
+        }
+
+        Collection<TestResult> getFailedTests() {
+            Collection<TestResult> tests = failedTests;
+            if (tests == null) {
+                List<TestResult> all = new ArrayList<TestResult>();
+                for (TestResult child : children) {
+                    all.addAll(child.getFailedTests());
+                }
+                failedTests = tests = Collections.unmodifiableList(all);
+            }
+            return tests;
+        }
+
+        Collection<TestResult> getPassedTests() {
+            Collection<TestResult> tests = passedTests;
+            if (tests == null) {
+                List<TestResult> all = new ArrayList<TestResult>();
+                for (TestResult child : children) {
+                    all.addAll(child.getPassedTests());
+                }
+                passedTests = tests = Collections.unmodifiableList(all);
+            }
+            return tests;
+        }
+
+        Collection<TestResult> getSkippedTests() {
+            Collection<TestResult> tests = skippedTests;
+            if (tests == null) {
+                List<TestResult> all = new ArrayList<TestResult>();
+                for (TestResult child : children) {
+                    all.addAll(child.getSkippedTests());
+                }
+                skippedTests = tests = Collections.unmodifiableList(all);
+            }
+            return tests;
+        }
+    }
+
+    /**
+     * Loads the group for a single label, for results that were stored split by label.
+     */
+    interface GroupLoader {
+        /**
+         * @return the group, or null if it couldn't be loaded
+         */
+        LabeledTestResultGroup loadGroup(String label);
+    }
+
     private static final Logger LOGGER = Logger.getLogger(MetaLabeledTestResultGroup.class.getName());
 
 
@@ -78,20 +182,104 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
      * Allow the object to rebuild its internal data structures when it is deserialized.
      */
     private Object readResolve() {
-        failedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        passedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        skippedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        allPassedTests = new HashSet<TestResult>();
-        allFailedTests  = new HashSet<TestResult>();
-        allSkippedTests = new HashSet<TestResult>();
-        updateCache();
+        if (storedLabels != null) {
+            // A manifest: the groups come later, one at a time, and the counts are good as they are.
+            // Groups can be loaded by concurrent requests, so the map has to cope with that.
+            childrenByLabel = new ConcurrentHashMap<String, LabeledTestResultGroup>(childrenByLabel);
+            unloadedLabels = new LinkedHashSet<String>(storedLabels);
+            cacheDirty = false;
+            return this;
+        }
+        // Don't tally yet: we aren't hooked up to our action, and nobody may
+        // ever ask for the counts. The first getter will do it.
+        cacheDirty = true;
         return this;
     }
 
+    void setGroupLoader(GroupLoader groupLoader) {
+        this.groupLoader = groupLoader;
+    }
 
+    /**
+     * A copy of this result without any groups, holding just the counts and
+     * the labels, for {@link SplitResultStore}.
+     */
+    MetaLabeledTestResultGroup createManifest() {
+        Snapshot s = snapshot();
+        MetaLabeledTestResultGroup manifest = new MetaLabeledTestResultGroup(null, description);
+        manifest.groupId = groupId;
+        manifest.passCount = s.passCount;
+        manifest.failCount = s.failCount;
+        manifest.skipCount = s.skipCount;
+        manifest.totalCount = s.totalCount;
+        manifest.duration = s.duration;
+        manifest.storedLabels = new ArrayList<String>(s.groups.keySet());
+        return manifest;
+    }
+
+    /**
+     * Load the group for one label from disk, if it's stored separately and
+     * hasn't been loaded yet.
+     */
+    private synchronized void loadStoredGroup(String label) {
+        if (unloadedLabels == null || !unloadedLabels.contains(label)) {
+            return;
+        }
+        LabeledTestResultGroup group = (groupLoader == null) ? null : groupLoader.loadGroup(label);
+        unloadedLabels.remove(label);
+        if (group == null) {
+            LOGGER.warning("Couldn't load the group for label " + label);
+            return;
+        }
+        group.parent = this;
+        group.setParentAction(parentAction);
+        childrenByLabel.put(label, group);
+        snapshot = null;
+    }
+
+    /**
+     * Load every group that's still on disk. Anything that looks at all the
+     * groups at once has to call this first.
+     */
+    private synchronized void loadAllStoredGroups() {
+        if (unloadedLabels == null || unloadedLabels.isEmpty()) {
+            return;
+        }
+        for (String label : new ArrayList<String>(unloadedLabels)) {
+            loadStoredGroup(label);
+        }
+    }
+
+
+    /**
+     * Bring our counts up to date. If none of the groups changed since their
+     * counts went into ours, they already are.
+     */
     @Override
-    public void tally() {
-        updateCache();
+    public synchronized void tally() {
+        if (cacheDirty || groupsChanged()) {
+            updateCache();
+        }
+    }
+
+    private boolean groupsChanged() {
+        if (countedGenerations == null) {
+            return true;
+        }
+        for (LabeledTestResultGroup group : childrenByLabel.values()) {
+            group.tally();
+            Integer counted = countedGenerations.get(group);
+            if (counted == null || counted != group.getGeneration()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void noteCounted(LabeledTestResultGroup group) {
+        if (countedGenerations != null) {
+            countedGenerations.put(group, group.getGeneration());
+        }
     }
 
     /**
@@ -99,22 +287,22 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
      * @return
      */
     public Collection<String> getLabels() {
-        if (cacheDirty) updateCache();
-        return childrenByLabel.keySet();
+        if (storedLabels != null) {
+            return Collections.unmodifiableList(storedLabels);
+        }
+        return snapshot().groups.keySet();
     }
     
 
     @Exported(inline=true,visibility=99)
     public Collection<LabeledTestResultGroup> getGroups() {
-        if (cacheDirty) updateCache();
-        return childrenByLabel.values();
+        loadAllStoredGroups();
+        return snapshot().groups.values();
     }
 
     public LabeledTestResultGroup getGroupByLabel(String label) {
-        if (cacheDirty) updateCache();
-        
-        LabeledTestResultGroup group = childrenByLabel.get(label);
-        return group;
+        if (unloadedLabels != null) loadStoredGroup(label);
+        return snapshot().groups.get(label);
     }
 
     public Collection<? extends TestResult> getChildrenForLabel(String label) {
@@ -146,18 +334,15 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
     public MetaLabeledTestResultGroup(MetaLabeledTestResultGroupAction parentAction, String description ) {
         childrenByLabel = new HashMap<String, LabeledTestResultGroup>(10);
-        failedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        passedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        skippedTestsByLabel = new HashMap<String, Collection<TestResult>>(10);
-        allPassedTests = new HashSet<TestResult>();
-        allFailedTests  = new HashSet<TestResult>();
-        allSkippedTests = new HashSet<TestResult>();
         this.parentAction  = parentAction;
         this.description = description;
-        cacheDirty = true; 
+        // Nothing in here yet, so the (zero) counts are right. From now on
+        // they're kept up to date as results are added.
+        countedGenerations = new IdentityHashMap<LabeledTestResultGroup, Integer>();
+        cacheDirty = false;
     }
 
-    public void setParentAction(MetaLabeledTestResultGroupAction parentAction) {
+    public synchronized void setParentAction(MetaLabeledTestResultGroupAction parentAction) {
         if (this.parentAction == parentAction) {
             return;
         }
@@ -169,22 +354,84 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
         }
     }
 
-    public void addTestResult(String label, TestResult result) {
-        if (! childrenByLabel.keySet().contains(label)) {
-            childrenByLabel.put(label, new LabeledTestResultGroup(this, label, Arrays.asList(result)));
-        }  else {
-            childrenByLabel.get(label).addResult(result);
+    public synchronized void addTestResult(String label, TestResult result) {
+        loadStoredGroup(label);
+        LabeledTestResultGroup existing = childrenByLabel.get(label);
+        if (existing == null) {
+            List<TestResult> children = new ArrayList<TestResult>();
+            children.add(result);
+            addNewGroup(label, new LabeledTestResultGroup(this, label, children));
+        }  else if (existing.add(result)) {
+            countResult(label, existing, result);
         }
-        cacheDirty = true;
     }
 
-    public void addTestResultGroup(String label, LabeledTestResultGroup group) {
-        if (! childrenByLabel.keySet().contains(label)) {
-            childrenByLabel.put(label, group);
+    public synchronized void addTestResultGroup(String label, LabeledTestResultGroup group) {
+        loadStoredGroup(label);
+        LabeledTestResultGroup existing = childrenByLabel.get(label);
+        if (existing == null) {
+            addNewGroup(label, group);
         }  else {
-            childrenByLabel.get(label).addAll(group);
+            for (TestResult r : group.getChildren()) {
+                if (existing.add(r)) {
+                    countResult(label, existing, r);
+                }
+            }
         }
-        cacheDirty = true;
+    }
+
+    /**
+     * Add a group for a label we don't have yet. Only the new group gets
+     * tallied; the rest of our counts stay as they are.
+     */
+    private void addNewGroup(String label, LabeledTestResultGroup group) {
+        childrenByLabel.put(label, group);
+        if (storedLabels != null && !storedLabels.contains(label)) {
+            // A new list, so that getLabels() callers keep the one they're iterating
+            List<String> labels = new ArrayList<String>(storedLabels);
+            labels.add(label);
+            storedLabels = labels;
+        }
+        snapshot = null;
+        if (cacheDirty) {
+            return; // it'll be counted with everything else
+        }
+        group.setParentAction(parentAction);
+        group.tally();
+        noteCounted(group);
+        passCount += group.getPassCount();
+        failCount += group.getFailCount();
+        skipCount += group.getSkipCount();
+        for (TestResult aResult : group.getChildren()) {
+            countChild(label, aResult);
+        }
+        totalCount = passCount + failCount + skipCount;
+        diffs = null;
+    }
+
+    /**
+     * Add the counts of a result that was just added to an existing group,
+     * and which that group has already tallied.
+     */
+    private void countResult(String label, LabeledTestResultGroup group, TestResult r) {
+        snapshot = null;
+        if (cacheDirty) {
+            return; // it'll be counted with everything else
+        }
+        noteCounted(group);
+        passCount += r.getPassCount();
+        failCount += r.getFailCount();
+        skipCount += r.getSkipCount();
+        countChild(label, r);
+        totalCount = passCount + failCount + skipCount;
+        diffs = null;
+    }
+
+    /**
+     * Add the duration of one child result.
+     */
+    private void countChild(String label, TestResult aResult) {
+        duration += aResult.getDuration();
     }
 
     @Override
@@ -199,8 +446,8 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public boolean isPassed() {
-        if (cacheDirty) updateCache();
-        return (failCount == 0) && (skipCount == 0);
+        Snapshot s = snapshot();
+        return (s.failCount == 0) && (s.skipCount == 0);
     }
 
     @Override
@@ -210,41 +457,54 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public MetaLabeledTestResultGroup getPreviousResult() {
-        // TODO: consider caching
         if (parentAction == null) return null;
-        Run<?, ?> b = parentAction.run;
-        while(true) {
-            b = b.getPreviousBuild();
-            if(b==null)
-                return null;
-            MetaLabeledTestResultGroupAction r = b.getAction(MetaLabeledTestResultGroupAction.class);
-            if(r!=null)
-                return r.getResultAsTestResultGroup();
-        }
+        MetaLabeledTestResultGroupAction r = parentAction.getPreviousAction();
+        if (r == null) return null;
+        return r.getResultAsTestResultGroup();
     }
 
     public int getPassDiff() {
-        MetaLabeledTestResultGroup prev = getPreviousResult();
-        if (prev==null) return getPassCount();
-        return getPassCount() - prev.getPassCount();  
+        return getDiffs().passDiff;
     }
 
     public int getSkipDiff() {
-        MetaLabeledTestResultGroup prev = getPreviousResult();
-        if (prev==null) return getSkipCount();
-        return getSkipCount() - prev.getSkipCount();
+        return getDiffs().skipDiff;
     }
 
     public int getFailDiff() {
-        MetaLabeledTestResultGroup prev = getPreviousResult();
-        if (prev==null) return getFailCount();
-        return getFailCount() - prev.getFailCount();
+        return getDiffs().failDiff;
     }
 
     public int getTotalDiff() {
-        MetaLabeledTestResultGroup prev = getPreviousResult();
-        if (prev==null) return getTotalCount();
-        return getTotalCount() - prev.getTotalCount();         
+        return getDiffs().totalDiff;
+    }
+
+    /**
+     * The diffs only need the previous build's counts. Our own summary has
+     * them already as long as the previous build is still the one they were
+     * worked out against; otherwise they come from the previous build's summary.
+     */
+    private CountDiffs getDiffs() {
+        CountDiffs d = diffs;
+        if (d == null || !d.isCurrent()) {
+            Snapshot s = snapshot(); // all four counts from the same tally
+            JobHistory history = JobHistory.of(parentAction != null ? parentAction.run : getOwner());
+            long generation = history.getGeneration();
+            MetaLabeledTestResultGroupAction prevAction = (parentAction == null) ? null : parentAction.getPreviousAction();
+            ResultSummary own = (parentAction == null) ? null : parentAction.peekSummary();
+            ResultSummary prev;
+            if (own != null && own.isDiffedAgainst(prevAction)) {
+                d = new CountDiffs(history, generation, own.getPassDiff(), own.getFailDiff(),
+                        own.getSkipDiff(), own.getTotalDiff());
+            } else if ((prev = (prevAction == null) ? null : prevAction.getSummary()) == null) {
+                d = new CountDiffs(history, generation, s.passCount, s.failCount, s.skipCount, s.totalCount);
+            } else {
+                d = new CountDiffs(history, generation, s.passCount - prev.getPassCount(), s.failCount - prev.getFailCount(),
+                        s.skipCount - prev.getSkipCount(), s.totalCount - prev.getTotalCount());
+            }
+            diffs = d;
+        }
+        return d;
     }
 
     @Override
@@ -260,8 +520,24 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
         return (TestResult)action.getResult();
     }
 
+    /**
+     * Looked up in the snapshot's id index first; only ids that aren't in it
+     * yet are resolved down through the groups.
+     */
     @Override
     public TestResult findCorrespondingResult(String id) {
+        Snapshot s = snapshot();
+        TestResult found = s.resultsById.get(id);
+        if (found == null) {
+            found = resolve(id);
+            if (found != null) {
+                s.resultsById.put(id, found);
+            }
+        }
+        return found;
+    }
+
+    private TestResult resolve(String id) {
         String groupName;
         String remainingId = null;
         int groupNameEnd = id.indexOf('/');
@@ -289,14 +565,37 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
         return null;
     }
     
+    /**
+     * The build in which this result started failing, from the {@link FailureAgeIndex}.
+     * For builds that completed before failure ages were recorded, we only know
+     * it's been failing since at least this build.
+     *
+     * @return 0 if this result is passing
+     */
     @Override
-    public int getFailedSince() {   // TODO: implement this.
-        throw new UnsupportedOperationException("hudson.plugins.labeledgroupedtests.MetaLabeledTestResultGroup#getFailedSince: Not yet implemented."); // TODO: implement
+    public int getFailedSince() {
+        if (getFailCount() == 0 || parentAction == null) return 0;
+        ResultSummary summary = parentAction.getSummary();
+        if (summary.hasFailureAges() && summary.getFailedSince() > 0) {
+            return summary.getFailedSince();
+        }
+        return parentAction.run.getNumber();
     }
 
     @Override
-    public Run<?,?> getFailedSinceRun() { // TODO: implement this.
-        throw new UnsupportedOperationException("hudson.plugins.labeledgroupedtests.MetaLabeledTestResultGroup#getFailedSinceRun: Not yet implemented."); // TODO: implement
+    public Run<?,?> getFailedSinceRun() {
+        int since = getFailedSince();
+        if (since == 0) return null;
+        return parentAction.run.getParent().getBuildByNumber(since);
+    }
+
+    /**
+     * @return how many builds this result has been failing for, counting this one, or 0 if it passed
+     */
+    public int getAge() {
+        int since = getFailedSince();
+        if (since == 0) return 0;
+        return parentAction.run.getNumber() - since + 1;
     }
 
 
@@ -307,8 +606,7 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
     @Exported(visibility=99)
     @Override
     public int getFailCount() {
-        if (cacheDirty) updateCache();
-        return failCount;
+        return snapshot().failCount;
     }
 
     /**
@@ -317,8 +615,7 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
      */
     @Exported(visibility=99)
     public int getSkipCount() {
-        if (cacheDirty) updateCache();
-        return skipCount;
+        return snapshot().skipCount;
     }
 
     /**
@@ -327,42 +624,54 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
     @Exported(visibility=99)
     @Override
     public int getPassCount() {
-        if (cacheDirty) updateCache();
-        return passCount;
+        return snapshot().passCount;
     }
 
+    /**
+     * The total as of the same tally as the other counts; adding up the three
+     * getters could mix two tallies.
+     */
+    @Override
+    public int getTotalCount() {
+        return snapshot().totalCount;
+    }
+
+    /**
+     * The failed tests of every child result, in every group.
+     */
     @Override
     public Collection<? extends TestResult> getFailedTests() {
-        // BAD result to force problems -- this method is now effectively UNIMPLEMENTED
-        LOGGER.severe("getFailedTests unimplemented. Expect garbage.");
-        if (cacheDirty) updateCache();
-        return allFailedTests;
+        loadAllStoredGroups();
+        return snapshot().getFailedTests();
     }
 
+    /**
+     * The skipped tests of every child result, in every group.
+     */
     @Override
     public Collection<? extends TestResult> getSkippedTests() {
-        LOGGER.severe("getSkippedTests unimplemented. Expect garbage.");
-        if (cacheDirty) updateCache();
-        return allSkippedTests;
+        loadAllStoredGroups();
+        return snapshot().getSkippedTests();
     }
 
+    /**
+     * The passed tests of every child result, in every group.
+     */
     @Override
     public Collection<? extends TestResult> getPassedTests() {
-        LOGGER.severe("getSkippedTests unimplemented. Expect garbage.");
-        if (cacheDirty) updateCache();
-        return allPassedTests;        
+        loadAllStoredGroups();
+        return snapshot().getPassedTests();
     }
 
     @Override
     public Collection<? extends TestResult> getChildren() {
-        if (cacheDirty) updateCache();
-        return flattenTopTier(childrenByLabel.values());
+        loadAllStoredGroups();
+        return snapshot().children;
     }
 
     @Override
     public boolean hasChildren() {
-        if (cacheDirty) updateCache();
-        return (totalCount != 0);
+        return (snapshot().totalCount != 0);
     }
 
     @Override
@@ -387,8 +696,7 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
     @Exported(visibility=99)
     @Override
     public float getDuration() {
-        if (cacheDirty) updateCache();
-        return duration; 
+        return snapshot().duration;
     }
 
     @Exported(visibility=99)
@@ -411,10 +719,8 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) {
-        if (cacheDirty) updateCache();
-
         // If there's a test with that label, serve up that test.
-        TestResult thatOne = childrenByLabel.get(token);
+        TestResult thatOne = getGroupByLabel(token);
         if (thatOne != null) {
         	return thatOne;
         } else {
@@ -425,11 +731,11 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
     @Override
     public String toPrettyString() {
-        if (cacheDirty) updateCache();
+        loadAllStoredGroups();
+        Map<String, LabeledTestResultGroup> groups = snapshot().groups;
         StringBuilder sb = new StringBuilder();
-        Set<String> labels = childrenByLabel.keySet();
-        for (String label: labels) {
-            LabeledTestResultGroup listForThisLabel = childrenByLabel.get(label);
+        for (String label: groups.keySet()) {
+            LabeledTestResultGroup listForThisLabel = groups.get(label);
             sb.append(label); sb.append(" results:\n");
             sb.append(listForThisLabel.toPrettyString());
         }
@@ -438,7 +744,6 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
 
 
     protected Collection<TestResult> flattenTopTier(Collection<LabeledTestResultGroup> twoTieredCollection) {
-        // TODO: Consider caching
         if (twoTieredCollection == null || twoTieredCollection.isEmpty()) return Collections.emptyList(); 
         List<TestResult> flattenedList = new ArrayList<TestResult>();
         for (LabeledTestResultGroup topTierElement : twoTieredCollection) {
@@ -447,54 +752,75 @@ public class MetaLabeledTestResultGroup extends MetaTabulatedResult {
         return flattenedList;
     }
 
-    private void storeInCache(String label, Map<String, Collection<TestResult>> sameStatusCollection, TestResult r) {
-        if (sameStatusCollection.keySet().contains(label)) {
-            sameStatusCollection.get(label).add(r);
-        } else {
-            List<TestResult> newCollection = new ArrayList<TestResult>(Arrays.asList(r));
-            sameStatusCollection.put(label, newCollection);
+    /**
+     * For a big result, tally the groups on several threads, so all that's
+     * left for {@link #updateCache} is adding them up. The helpers only take
+     * the groups' locks, never ours.
+     */
+    private void tallyInParallel(int lastTotal) {
+        if (!ParallelTally.isWorthIt(lastTotal, childrenByLabel.size())) {
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<Runnable>(childrenByLabel.size());
+        for (final LabeledTestResultGroup group : childrenByLabel.values()) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    group.setParentAction(parentAction);
+                    group.tally();
+                }
+            });
+        }
+        ParallelTally.runAll(tasks);
+    }
+
+    /**
+     * The current snapshot, taking a new one if something changed since the last.
+     */
+    private Snapshot snapshot() {
+        Snapshot s = snapshot;
+        return (s != null) ? s : publish();
+    }
+
+    private synchronized Snapshot publish() {
+        if (snapshot == null) {
+            if (cacheDirty) {
+                updateCache();
+            } else {
+                snapshot = new Snapshot(this);
+            }
         }
+        return snapshot;
     }
 
-    private void updateCache() {
-        failedTestsByLabel.clear();
-        skippedTestsByLabel.clear();
-        passedTestsByLabel.clear();
-        allFailedTests.clear();;
-        allPassedTests.clear();
-        allSkippedTests.clear();
+    private synchronized void updateCache() {
+        int lastTotal = totalCount;
+        loadAllStoredGroups();
         passCount = 0;
         failCount = 0;
         skipCount = 0;         
-        float durationAccum = 0.0f;
+        duration = 0.0f;
+        countedGenerations = new IdentityHashMap<LabeledTestResultGroup, Integer>();
+        tallyInParallel(lastTotal);
 
         Collection<String> theLabels = childrenByLabel.keySet();
         for (String l : theLabels) {
             LabeledTestResultGroup groupForThisLabel = childrenByLabel.get(l);
             groupForThisLabel.setParentAction(parentAction);
-            groupForThisLabel.tally();
+            groupForThisLabel.tally();  // only tallies children it hasn't seen
+            noteCounted(groupForThisLabel);
             passCount += groupForThisLabel.getPassCount();
             failCount += groupForThisLabel.getFailCount();
             skipCount += groupForThisLabel.getSkipCount();            
             for (TestResult aResult : groupForThisLabel.getChildren()) {
-                durationAccum += aResult.getDuration();
-                if (aResult.isPassed()) {
-                    storeInCache(l, passedTestsByLabel, aResult);
-                    allPassedTests.add(aResult);
-                } else if (aResult.getFailCount() > 0) {
-                    storeInCache(l, failedTestsByLabel, aResult);
-                    allFailedTests.add(aResult);
-                } else {
-                    storeInCache(l, skippedTestsByLabel, aResult);
-                    allSkippedTests.add(aResult);
-                }                
+                countChild(l, aResult);
             }
         }
 
-        duration = durationAccum;
         totalCount = passCount + failCount + skipCount; 
+        diffs = null;
 
         cacheDirty=false; 
+        snapshot = new Snapshot(this);
     }
 
 
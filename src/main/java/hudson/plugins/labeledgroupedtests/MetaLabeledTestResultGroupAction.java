@@ -24,6 +24,7 @@
 package hudson.plugins.labeledgroupedtests;
 
 import com.thoughtworks.xstream.XStream;
+import hudson.Util;
 import hudson.XmlFile;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -34,7 +35,14 @@ import org.kohsuke.stapler.StaplerProxy;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InvalidClassException;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,9 +55,36 @@ import java.util.logging.Logger;
 public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<MetaLabeledTestResultGroupAction> implements StaplerProxy {
 
     static public final String RESULT_DATA_FILENAME = "testResultGroups.xml";
+    static public final String BINARY_RESULT_DATA_FILENAME = "testResultGroups.bin";
+    static public final String SUMMARY_DATA_FILENAME = "testResultGroupsSummary.xml";
+    static public final String SPLIT_DATA_DIRNAME = "testResultGroups";
+
+    /**
+     * When true, results also get a copy in the compact binary format
+     * ({@link #BINARY_RESULT_DATA_FILENAME}), which is what they're loaded from,
+     * and builds that only have XML get a binary copy the first time they are
+     * loaded. The XML stays: a binary copy that a later version can't read is
+     * simply dropped and made again from it.
+     */
+    public static boolean BINARY_STORAGE = Boolean.getBoolean(MetaLabeledTestResultGroupAction.class.getName() + ".binaryStorage");
+
+    /**
+     * When true, results are saved with one file per label under {@link #SPLIT_DATA_DIRNAME},
+     * and a loaded result only reads a label's file once that label is asked for.
+     * Each file uses the binary format if {@link #BINARY_STORAGE} is also on.
+     */
+    public static boolean SPLIT_STORAGE = Boolean.getBoolean(MetaLabeledTestResultGroupAction.class.getName() + ".splitStorage");
+
+    /**
+     * When true, {@link #setResult} hands the result to the {@link ResultPersister}
+     * instead of writing it on the build thread. The write is waited for when
+     * the build completes, and the result stays in memory until it's on disk,
+     * or until the write has failed twice.
+     */
+    public static boolean ASYNC_PERSISTENCE = Boolean.getBoolean(MetaLabeledTestResultGroupAction.class.getName() + ".asyncPersistence");
     private int failCount;
     private int skipCount;
-    private Integer totalCount; // TODO: can we make this just a normal int, and find another way to check
+    private volatile Integer totalCount; // TODO: can we make this just a normal int, and find another way to check
     // whether we're populated yet? (This technique is borrowed from hudson core TestResultAction.) 
 
 
@@ -60,12 +95,42 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
 
     /**
      * Store the result group itself in a separate file so we don't eat up
-     * too much memory.
+     * too much memory. Recently used results are held by the {@link ResultCache};
+     * this only lets us pick a result back up if it's still around after the
+     * cache let go of it.
+     */
+    private transient volatile WeakReference<MetaLabeledTestResultGroup> resultGroupReference;
+
+    /**
+     * The load from disk that's under way, if any. Everyone who needs the
+     * result while it's loading waits for this one load instead of starting their own.
+     */
+    private transient AtomicReference<FutureTask<MetaLabeledTestResultGroup>> loading;
+
+    /**
+     * A result that isn't on disk yet, so it must not be let go of while its write is under way.
+     */
+    private transient volatile MetaLabeledTestResultGroup pinned;
+    private transient volatile Future<?> pendingWrite;
+
+    /** The action of the previous build with results, as last looked up */
+    private transient volatile PreviousLink previousLink;
+
+    /**
+     * The counts, kept in their own small file so that they can be read
+     * without loading the result. Loaded on first use.
      */
-    private transient WeakReference<MetaLabeledTestResultGroup> resultGroupReference;
+    private transient volatile ResultSummary summary;
+
+    /**
+     * The failure ages as of this build, single tests included, or
+     * {@link FailureAgeIndex#UNKNOWN} if there are none. Loaded on first use.
+     */
+    private transient volatile FailureAgeIndex failureAges;
 
     public MetaLabeledTestResultGroupAction(Run<?, ?> owner, MetaLabeledTestResultGroup r, TaskListener listener) {
         super();
+        this.loading = new AtomicReference<FutureTask<MetaLabeledTestResultGroup>>();
         this.onAttached(owner);
         setResult(r, listener);
     }
@@ -78,24 +143,104 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
 
         r.setParentAction(this);
 
-        totalCount = r.getTotalCount();
         failCount = r.getFailCount();
         skipCount = r.getSkipCount();
+        totalCount = r.getTotalCount(); // last: readers check this one
 
         // persist the data
+        if (ASYNC_PERSISTENCE) {
+            pinned = r;
+            pendingWrite = ResultPersister.get().submit(this, r);
+        } else {
+            try {
+                persist(r);
+            } catch (IOException e) {
+                e.printStackTrace(listener.fatalError("Failed to save the labeled test groups publisher's test result"));
+            }
+        }
+
+        this.resultGroupReference = new WeakReference<MetaLabeledTestResultGroup>(r);
+        ResultCache.get().put(this, r);
+
+        ResultSummary previous = null;
+        MetaLabeledTestResultGroupAction previousAction = getPreviousAction();
+        if (previousAction != null) {
+            previous = previousAction.getSummary();
+        }
+        summary = ResultSummary.summarize(r, previous, previousAction == null ? 0 : previousAction.run.getNumber());
         try {
-            getDataFile().write(r);
+            getSummaryFile().write(summary);
         } catch (IOException e) {
-            e.printStackTrace(listener.fatalError("Failed to save the labeled test groups publisher's test result"));
+            e.printStackTrace(listener.error("Failed to save the summary of the labeled test groups publisher's test result"));
         }
+    }
 
-        this.resultGroupReference = new WeakReference<MetaLabeledTestResultGroup>(r);
+    /**
+     * Write the result to disk, in whichever format is configured.
+     */
+    void persist(MetaLabeledTestResultGroup r) throws IOException {
+        if (SPLIT_STORAGE) {
+            getSplitStore().write(r, BINARY_STORAGE);
+            // Don't leave an older copy of the result around in the other formats
+            getDataFile().delete();
+            getBinaryDataFile().getFile().delete();
+        } else if (BINARY_STORAGE) {
+            getDataFile().write(r);
+            deleteSplitStore();
+            writeBinaryCopy(r);
+        } else {
+            getDataFile().write(r);
+            getBinaryDataFile().getFile().delete();
+            deleteSplitStore();
+        }
+    }
+
+    void unpin(MetaLabeledTestResultGroup r) {
+        if (pinned == r) {
+            pinned = null;
+        }
+    }
+
+    /**
+     * Wait for a write started by {@link #setResult} to finish, if there is one,
+     * and report it to the listener if it failed.
+     */
+    public void flush(TaskListener listener) throws InterruptedException {
+        Future<?> write = pendingWrite;
+        if (write == null) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace(listener.fatalError("Failed to save the labeled test groups publisher's test result"));
+        }
+        pendingWrite = null;
     }
 
     private XmlFile getDataFile() {
         return new XmlFile(XSTREAM, new File(run.getRootDir(), RESULT_DATA_FILENAME));
     }
 
+    private XmlFile getSummaryFile() {
+        return new XmlFile(XSTREAM, new File(run.getRootDir(), SUMMARY_DATA_FILENAME));
+    }
+
+    private SplitResultStore getSplitStore() {
+        return new SplitResultStore(new File(run.getRootDir(), SPLIT_DATA_DIRNAME));
+    }
+
+    private void deleteSplitStore() throws IOException {
+        SplitResultStore store = getSplitStore();
+        if (store.getDir().exists()) {
+            Util.deleteRecursive(store.getDir());
+        }
+    }
+
+    private BinaryResultFile getBinaryDataFile() {
+        return new BinaryResultFile(new File(run.getRootDir(), BINARY_RESULT_DATA_FILENAME));
+    }
+
     public Object getTarget() {
         return getResult();
     }
@@ -105,7 +250,7 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
      */
     public int getFailCount() {
         if (totalCount == null)
-            getResult();    // this will load the result from disk if necessary
+            getSummary();    // this will load the summary from disk if necessary
         return failCount;
     }
 
@@ -116,7 +261,7 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
      */
     public int getSkipCount() {
         if (totalCount == null)
-            getResult();   // this will load the result from disk if necessary
+            getSummary();   // this will load the summary from disk if necessary
         return skipCount;
     }
 
@@ -125,34 +270,39 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
      */
     public int getTotalCount() {
         if (totalCount == null)
-            getResult();    // this will load the result from disk if necessary
+            getSummary();    // this will load the summary from disk if necessary
         return totalCount;
     }
 
 
     /**
      * Get the result that this action represents. If necessary, the result will be
-     * loaded from disk.
+     * loaded from disk. This never takes a lock: a result that's already in
+     * memory comes straight back, and callers that arrive while it's being
+     * loaded share that one load.
      *
      * @return
      */
-    public synchronized MetaLabeledTestResultGroup getResult() {
+    public MetaLabeledTestResultGroup getResult() {
         // If we've got a legacy data structure, inline, then just return it,
         // no fancy loading-on-demand. 
         if (this.resultGroup != null)
             return this.resultGroup;
+
+        MetaLabeledTestResultGroup p = pinned;
+        if (p != null)
+            return p;
         
-        MetaLabeledTestResultGroup r;
-        if (resultGroupReference == null) {
-            r = load();
-            resultGroupReference = new WeakReference<MetaLabeledTestResultGroup>(r);
-        } else {
+        MetaLabeledTestResultGroup r = ResultCache.get().get(this);
+        if (r == null && resultGroupReference != null) {
+            // Evicted from the cache, but nobody has collected it yet
             r = resultGroupReference.get();
+            if (r != null) {
+                ResultCache.get().put(this, r);
+            }
         }
-
         if (r == null) {
-            r = load();
-            resultGroupReference = new WeakReference<MetaLabeledTestResultGroup>(r);
+            r = loadOnce();
         }
         if (r == null) {
             logger.severe("Couldn't get result for MetaLabeledTestResultGroup " + this);
@@ -160,28 +310,298 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
         }
 
         if (totalCount == null) {
-            totalCount = r.getTotalCount();
             failCount = r.getFailCount();
             skipCount = r.getSkipCount();
+            totalCount = r.getTotalCount();
         }
         return r;
     }
 
     /**
-     * Loads a {@link MetaLabeledTestResultGroup} from disk.
+     * Load the result, or wait for the load someone else already started.
+     * The loader publishes the result before it steps aside, so whoever comes
+     * after finds it in memory instead of loading it again.
      */
-    private MetaLabeledTestResultGroup load() {
-        MetaLabeledTestResultGroup r;
+    private MetaLabeledTestResultGroup loadOnce() {
+        boolean interrupted = false;
         try {
-            r = (MetaLabeledTestResultGroup) getDataFile().read();
+            while (true) {
+                FutureTask<MetaLabeledTestResultGroup> task = loading.get();
+                boolean mine = false;
+                if (task == null) {
+                    task = new FutureTask<MetaLabeledTestResultGroup>(new Callable<MetaLabeledTestResultGroup>() {
+                        public MetaLabeledTestResultGroup call() {
+                            MetaLabeledTestResultGroup r = load();
+                            resultGroupReference = new WeakReference<MetaLabeledTestResultGroup>(r);
+                            ResultCache.get().put(MetaLabeledTestResultGroupAction.this, r);
+                            return r;
+                        }
+                    });
+                    if (!loading.compareAndSet(null, task)) {
+                        continue; // somebody beat us to it; wait for theirs
+                    }
+                    mine = true;
+                    task.run();
+                }
+                try {
+                    while (true) {
+                        try {
+                            return task.get();
+                        } catch (InterruptedException e) {
+                            // The load isn't ours to abandon; finish waiting, then pass the interrupt on
+                            interrupted = true;
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    logger.log(Level.WARNING, "Failed to load the test result of " + run, e.getCause());
+                    return null;
+                } finally {
+                    if (mine) {
+                        loading.compareAndSet(task, null);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The counts of this build's result, per label and overall. This only
+     * loads the small summary file. Builds recorded before there were summary
+     * files get one written the first time they are asked.
+     *
+     * @return never null
+     */
+    public ResultSummary getSummary() {
+        // Two callers may both load it the first time; that's harmless, and cheaper than a lock.
+        ResultSummary s = summary;
+        if (s == null) {
+            s = summary = loadSummary();
+        }
+        if (totalCount == null) {
+            failCount = s.getFailCount();
+            skipCount = s.getSkipCount();
+            totalCount = s.getTotalCount();
+        }
+        return s;
+    }
+
+    /**
+     * @return the summary if it can be had without loading the full result, or null.
+     */
+    ResultSummary peekSummary() {
+        ResultSummary s = summary;
+        if (s == null && getSummaryFile().exists()) {
+            s = summary = loadSummary();
+        }
+        return s;
+    }
+
+    private ResultSummary loadSummary() {
+        XmlFile summaryFile = getSummaryFile();
+        if (summaryFile.exists()) {
+            try {
+                return (ResultSummary) summaryFile.read();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load " + summaryFile + ", rebuilding it", e);
+            } catch (ClassCastException e) {
+                logger.log(Level.WARNING, "Unexpected content in " + summaryFile + ", rebuilding it", e);
+            }
+        }
+
+        // An older build: pay for the full load once, and remember the answer.
+        MetaLabeledTestResultGroup r = getResult();
+        if (r == null) {
+            return ResultSummary.summarize(new MetaLabeledTestResultGroup(), null, 0);
+        }
+        // Only diff against the previous build if that's cheap; walking back
+        // through history here would load every older result in turn.
+        ResultSummary previous = null;
+        MetaLabeledTestResultGroupAction previousAction = getPreviousAction();
+        if (previousAction != null) {
+            previous = previousAction.peekSummary();
+        }
+        ResultSummary s = ResultSummary.summarize(r, previous, previous == null ? 0 : previousAction.run.getNumber());
+        try {
+            summaryFile.write(s);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + summaryFile, e);
+        }
+        return s;
+    }
+
+    /**
+     * @return the action of the closest earlier build that has one, or null.
+     */
+    MetaLabeledTestResultGroupAction getPreviousAction() {
+        PreviousLink link = previousLink;
+        long generation = JobHistory.of(run).getGeneration();
+        if (link == null || link.generation != generation) {
+            link = new PreviousLink(findPreviousAction(), generation);
+            previousLink = link;
+        }
+        return link.action;
+    }
+
+    private MetaLabeledTestResultGroupAction findPreviousAction() {
+        Run<?, ?> b = run.getPreviousBuild();
+        while (b != null) {
+            MetaLabeledTestResultGroupAction a = b.getAction(MetaLabeledTestResultGroupAction.class);
+            if (a != null) {
+                return a;
+            }
+            b = b.getPreviousBuild();
+        }
+        return null;
+    }
+
+    /**
+     * The previous action, as of a {@link JobHistory generation} of our project.
+     */
+    private static final class PreviousLink {
+        final MetaLabeledTestResultGroupAction action;
+        final long generation;
+
+        PreviousLink(MetaLabeledTestResultGroupAction action, long generation) {
+            this.action = action;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Store the failure ages of this build: all of them in their own file,
+     * and the whole result's and the labels' in its summary too. Readers keep
+     * the summary they already have; the new one replaces it as a whole.
+     */
+    void recordFailureAges(FailureAgeIndex index) {
+        XmlFile agesFile = FailureAgeIndex.getFile(run);
+        try {
+            agesFile.write(index);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save " + agesFile, e);
+        }
+        synchronized (this) {
+            failureAges = index;
+        }
+
+        ResultSummary s = getSummary().withFailureAges(index);
+        XmlFile summaryFile = getSummaryFile();
+        try {
+            summaryFile.write(s);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to load " + getDataFile(), e);
-            r = new MetaLabeledTestResultGroup();   // return a dummy
+            logger.log(Level.WARNING, "Failed to save " + summaryFile, e);
+        }
+        summary = s;
+    }
+
+    /**
+     * @return the failure ages as of this build, or null if the build is from
+     * before single tests' ages were kept, or hasn't completed yet.
+     */
+    FailureAgeIndex getFailureAges() {
+        FailureAgeIndex ages = failureAges;
+        if (ages == null) {
+            synchronized (this) {
+                ages = failureAges;
+                if (ages == null) {
+                    ages = FailureAgeIndex.read(FailureAgeIndex.getFile(run));
+                    if (ages == null) {
+                        ages = FailureAgeIndex.UNKNOWN;
+                    }
+                    failureAges = ages;
+                }
+            }
+        }
+        return ages == FailureAgeIndex.UNKNOWN ? null : ages;
+    }
+
+    /**
+     * The labels this build has results for, from the summary.
+     */
+    public Collection<String> getLabels() {
+        return getSummary().getLabels();
+    }
+
+    /**
+     * Loads a {@link MetaLabeledTestResultGroup} from disk. A split store wins
+     * if there is one, then the binary file; the XML file is the fallback, and
+     * is migrated to the binary format when {@link #BINARY_STORAGE} is on.
+     */
+    private MetaLabeledTestResultGroup load() {
+        MetaLabeledTestResultGroup r = null;
+        SplitResultStore splitStore = getSplitStore();
+        if (splitStore.exists()) {
+            try {
+                r = splitStore.read();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load " + splitStore.getDir() + ", trying a single file", e);
+            } catch (ClassCastException e) {
+                logger.log(Level.WARNING, "Unexpected content in " + splitStore.getDir() + ", trying a single file", e);
+            }
+        }
+        BinaryResultFile binaryFile = getBinaryDataFile();
+        if (r == null && binaryFile.exists()) {
+            try {
+                r = (MetaLabeledTestResultGroup) binaryFile.read();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load " + binaryFile.getFile() + ", trying XML", e);
+            } catch (ClassCastException e) {
+                logger.log(Level.WARNING, "Unexpected content in " + binaryFile.getFile() + ", trying XML", e);
+            }
+            if (r == null && getDataFile().exists()) {
+                // Most likely written by an older version; the XML has it all
+                binaryFile.getFile().delete();
+            }
+        }
+        if (r == null) {
+            try {
+                r = (MetaLabeledTestResultGroup) getDataFile().read();
+                if (BINARY_STORAGE) {
+                    migrateToBinary(r);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to load " + getDataFile(), e);
+                r = new MetaLabeledTestResultGroup();   // return a dummy
+            }
         }
         r.setParentAction(this);
         return r;
     }
 
+    /**
+     * Write a binary copy of a result that was loaded from XML. The XML file is
+     * kept, so turning {@link #BINARY_STORAGE} off again (or downgrading) loses nothing.
+     */
+    private void migrateToBinary(MetaLabeledTestResultGroup r) {
+        if (writeBinaryCopy(r)) {
+            logger.fine("Migrated " + getDataFile() + " to " + BINARY_RESULT_DATA_FILENAME);
+        }
+    }
+
+    /**
+     * Write the binary copy of a result that's already safe in XML. Failing to
+     * only costs the speed-up, so it's logged rather than thrown.
+     */
+    private boolean writeBinaryCopy(MetaLabeledTestResultGroup r) {
+        BinaryResultFile binaryFile = getBinaryDataFile();
+        try {
+            binaryFile.write(r);
+            return true;
+        } catch (InvalidClassException e) {
+            // Holds another parser's classes; nothing wrong, it just stays XML only
+            logger.log(Level.FINE, "Not keeping a binary copy of " + binaryFile.getFile() + ": " + e.getMessage());
+            binaryFile.getFile().delete();
+            return false;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write " + binaryFile.getFile() + "; the result will be loaded from XML", e);
+            binaryFile.getFile().delete();
+            return false;
+        }
+    }
+
     /**
      * This convenience method is what getResult() should have been,
      * but with a specified return type.
@@ -221,6 +641,8 @@ public class MetaLabeledTestResultGroupAction extends AbstractTestResultAction<M
      * @return
      */
     public Object readResolve() {
+        this.loading = new AtomicReference<FutureTask<MetaLabeledTestResultGroup>>();
+
         // This method is called when an instance of this object is loaded from
         // persistent storage into memory. We use this opportunity to detect
         // and convert from storing the test results in the same file as the
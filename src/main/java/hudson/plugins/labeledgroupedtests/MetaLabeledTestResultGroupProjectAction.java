@@ -23,16 +23,21 @@
  */
 package hudson.plugins.labeledgroupedtests;
 
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.tasks.test.TestResult;
+import hudson.model.Run;
 import hudson.tasks.test.TestResultProjectAction;
-import hudson.tasks.test.AbstractTestResultAction;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -43,8 +48,46 @@ import java.util.logging.Logger;
 public class MetaLabeledTestResultGroupProjectAction extends TestResultProjectAction {
     private static final Logger LOGGER = Logger.getLogger(MetaLabeledTestResultGroupProjectAction.class.getName());
 
+    /**
+     * How many builds back the trend graphs go, unless the job says otherwise.
+     */
+    public static int TREND_DEPTH = Integer.getInteger(MetaLabeledTestResultGroupProjectAction.class.getName() + ".trendDepth", 300);
+
+    /**
+     * How many points a trend is thinned down to, unless the job says
+     * otherwise. 0 draws every build within the depth.
+     */
+    public static int TREND_POINTS = Integer.getInteger(MetaLabeledTestResultGroupProjectAction.class.getName() + ".trendPoints", 0);
+
+    private final LabeledTestResultGroupPublisher publisher;
+
+    /**
+     * The trends of every label for the latest project state, shared by the
+     * graphs, their maps and the JSON until the next build or deletion.
+     */
+    private volatile History history;
+
+    private static final class History {
+        final String key;
+        /** Every build within the depth */
+        final Map<String, List<TrendPoint>> all;
+        /** Thinned down to the trend points, for drawing */
+        final Map<String, List<TrendPoint>> points;
+
+        History(String key, Map<String, List<TrendPoint>> all, Map<String, List<TrendPoint>> points) {
+            this.key = key;
+            this.all = all;
+            this.points = points;
+        }
+    }
+
     public MetaLabeledTestResultGroupProjectAction(AbstractProject<?, ?> project) {
+        this(project, null);
+    }
+
+    public MetaLabeledTestResultGroupProjectAction(AbstractProject<?, ?> project, LabeledTestResultGroupPublisher publisher) {
         super(project);
+        this.publisher = publisher;
     }
 
     @Override
@@ -52,84 +95,203 @@ public class MetaLabeledTestResultGroupProjectAction extends TestResultProjectAc
         return "groupedTests";
     }
 
+    /**
+     * The labels of the latest results, without loading the build they're from.
+     */
     public Collection<String> getLabels() {
-        MetaLabeledTestResultGroupAction action = getLastTestResultAction();
-        if (action != null) {
-            MetaLabeledTestResultGroup resultGroup = action.getResultAsTestResultGroup();
-            if (resultGroup != null) return resultGroup.getLabels();
-        }
-        return Collections.EMPTY_LIST;
+        return LastResult.get(project).labels;
     }
 
 
     public MetaLabeledTestResultGroupAction getLastTestResultAction() {
-        final AbstractBuild<?,?> tb = project.getLastSuccessfulBuild();
-
-        AbstractBuild<?,?> b=project.getLastBuild();
-        while(b!=null) {
-            MetaLabeledTestResultGroupAction a = b.getAction(MetaLabeledTestResultGroupAction.class);
-            if(a!=null) return a;
-            if(b==tb)
-                // if even the last successful build didn't produce the test result,
-                // that means we just don't have any tests configured.
-                return null;
-            b = b.getPreviousBuild();
+        return LastResult.getAction(project);
+    }
+
+    /**
+     * The graph only reads the history if it has to be rendered. It's keyed on
+     * the latest build with results, so a graph that's already been rendered
+     * (or that the browser already has) is served without it.
+     */
+    public TrendGraph getTrendGraph(final String label) {
+        final MetaLabeledTestResultGroupAction action = getLastTestResultAction();
+        if (action != null && action.getLabels().contains(label)) {
+            String cacheKey = getTrendKey() + "/" + label;
+            return new TrendGraph(getTrendTimestamp(), cacheKey, "/testReport/" + label, "count") {
+                @Override
+                protected List<TrendPoint> loadPoints() {
+                    List<TrendPoint> points = getHistory(action).get(label);
+                    return points != null ? points : Collections.<TrendPoint>emptyList();
+                }
+            };
         }
+        LOGGER.warning("Couldn't find the right result group for a trend graph for label '" + label + "'");
+        return null;
+    }
 
+    /**
+     * How long the tests of a label took, drawn from the same history as
+     * {@link #getTrendGraph(String)}. The rolling statistics are worked out
+     * over every build within the depth, and only then thinned down.
+     */
+    public DurationTrendGraph getDurationGraph(final String label) {
+        final MetaLabeledTestResultGroupAction action = getLastTestResultAction();
+        if (action != null && action.getLabels().contains(label)) {
+            String cacheKey = getTrendKey() + "/" + label + "/duration/" + DurationTrendGraph.WINDOW;
+            return new DurationTrendGraph(getTrendTimestamp(), cacheKey, "/testReport/" + label, getTrendPoints()) {
+                @Override
+                protected List<TrendPoint> loadPoints() {
+                    List<TrendPoint> points = getHistoryOf(action).all.get(label);
+                    return points != null ? points : Collections.<TrendPoint>emptyList();
+                }
+            };
+        }
+        LOGGER.warning("Couldn't find the right result group for a duration graph for label '" + label + "'");
         return null;
     }
 
-    public TrendGraph getTrendGraph(String label) {
+    /**
+     * The trends of every label at once, as JSON, for the chart that's drawn
+     * in the browser:
+     * <pre>
+     * {"labels": {"unit": {"builds": [..], "names": [..], "pass": [..], "fail": [..], "skip": [..], "duration": [..]}, ..}}
+     * </pre>
+     * The arrays of a label line up, one element per build, oldest first.
+     * The ETag is the graphs' {@link #getTrendKey() key}, so the two agree on
+     * when the trends have changed.
+     */
+    public void doTrendData(StaplerRequest req, StaplerResponse rsp) throws IOException {
         MetaLabeledTestResultGroupAction action = getLastTestResultAction();
-        int MAX_HISTORY = 300; // totally arbitrary, yep
-        boolean pretendLegacyResultsAreInThisLabel = label.equalsIgnoreCase("unit");
-        if (action != null) {
-            MetaLabeledTestResultGroup resultGroup = action.getResultAsTestResultGroup();
-            if (resultGroup != null) {
-                if (resultGroup.getLabels().contains(label)) {
-                    int lastBuildNumber = project.getLastBuild().getNumber();
-                    int firstBuildNumber = project.getFirstBuild().getNumber();
-                    if (lastBuildNumber - firstBuildNumber > MAX_HISTORY) {
-                        firstBuildNumber = lastBuildNumber - MAX_HISTORY;
-                    }
-
-                    List<TestResult> history = new ArrayList<TestResult>(MAX_HISTORY);
-                    for (int buildNumber = firstBuildNumber; buildNumber <= lastBuildNumber; buildNumber++) {
-                        AbstractBuild<?,?> build = project.getBuildByNumber(buildNumber);
-                        if (build == null) continue;
-                        MetaLabeledTestResultGroupAction historicalAction = build.getAction(MetaLabeledTestResultGroupAction.class);
-                        if (historicalAction!=null) {
-                            MetaLabeledTestResultGroup historicalResultGroup = historicalAction.getResultAsTestResultGroup();
-                                if (historicalResultGroup==null) continue;
-                                if (resultGroup.getLabels().contains(label)) {
-                                    LabeledTestResultGroup group = historicalResultGroup.getGroupByLabel(label);
-                                    if (group == null) {
-                                        LOGGER.info("Couldn't find a group with label " + label + " for build " + buildNumber);
-                                        history.add(new LabeledTestResultGroup());
-                                    } else {
-                                        history.add(group);
-                                    }
-                                }
-                        } else if (pretendLegacyResultsAreInThisLabel) {
-                            // We're going to pretend that all legacy data should be marked as "unit",
-                            // so if we're building the "unit" graph, try to adapt the data for the graph.
-                            // See if we can find some TestResultAction, and use its historical data
-                            AbstractTestResultAction legacyAction = build.getAction(AbstractTestResultAction.class);
-                            if (legacyAction==null) continue;
-                            Object hopefullyAResult = legacyAction.getResult();
-                            if (hopefullyAResult instanceof TestResult) {
-                                TestResult result = (TestResult) hopefullyAResult;
-                                history.add(result);
-                            }                            
-                        }
-                    }
-
-                    return new TrendGraph("/testReport/" + label, "count", history); 
+        if (action == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (TrendGraph.notModified(req, rsp, getTrendKey(), getTrendTimestamp())) {
+            return;
+        }
+
+        JSONObject labels = new JSONObject();
+        for (Map.Entry<String, List<TrendPoint>> e : getHistory(action).entrySet()) {
+            JSONArray builds = new JSONArray();
+            JSONArray names = new JSONArray();
+            JSONArray pass = new JSONArray();
+            JSONArray fail = new JSONArray();
+            JSONArray skip = new JSONArray();
+            JSONArray duration = new JSONArray();
+            for (TrendPoint p : e.getValue()) {
+                builds.add(p.getBuildNumber());
+                names.add(p.getDisplayName());
+                pass.add(p.getPassCount());
+                fail.add(p.getFailCount());
+                skip.add(p.getSkipCount());
+                duration.add(p.getDuration());
+            }
+            JSONObject series = new JSONObject();
+            series.put("builds", builds);
+            series.put("names", names);
+            series.put("pass", pass);
+            series.put("fail", fail);
+            series.put("skip", skip);
+            series.put("duration", duration);
+            labels.put(e.getKey(), series);
+        }
+        JSONObject json = new JSONObject();
+        json.put("labels", labels);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        Writer w = rsp.getCompressedWriter(req);
+        json.write(w);
+        w.close();
+    }
+
+    /**
+     * Changes whenever this project's trends might: when one of its builds
+     * completes, whenever one of them is deleted, and whenever the depth or
+     * points change. Builds of other projects don't move it. A build that's
+     * still running isn't in the {@link TrendStore} yet, so it doesn't count
+     * until it's done.
+     */
+    private String getTrendKey() {
+        return getTrendKey(project.getLastCompletedBuild());
+    }
+
+    private String getTrendKey(Run<?, ?> last) {
+        return project.getFullName() + "#" + (last == null ? 0 : last.getNumber())
+                + "@" + JobHistory.of(project).getGeneration()
+                + "~" + getTrendDepth() + "x" + getTrendPoints();
+    }
+
+    /**
+     * When the trends last might have changed, to go with {@link #getTrendKey}:
+     * the latest completed build finished, or the project's history changed since.
+     */
+    private long getTrendTimestamp() {
+        Run<?, ?> last = project.getLastCompletedBuild();
+        long finished = last == null ? 0 : last.getTimeInMillis() + last.getDuration();
+        return Math.max(finished, JobHistory.of(project).getChangedAt());
+    }
+
+    public int getTrendDepth() {
+        int depth = publisher == null ? 0 : publisher.getTrendDepth();
+        return depth > 0 ? depth : TREND_DEPTH;
+    }
+
+    public int getTrendPoints() {
+        int points = publisher == null ? 0 : publisher.getTrendPoints();
+        return points > 0 ? points : TREND_POINTS;
+    }
+
+    /**
+     * The trends of all labels of the given action, read in one pass and
+     * remembered for as long as the project stays in the same state: up to
+     * the same last completed build, in the same generation of its history.
+     */
+    private Map<String, List<TrendPoint>> getHistory(MetaLabeledTestResultGroupAction action) {
+        return getHistoryOf(action).points;
+    }
+
+    private History getHistoryOf(MetaLabeledTestResultGroupAction action) {
+        Run<?, ?> lastCompleted = project.getLastCompletedBuild();
+        String key = getTrendKey(lastCompleted);
+        History h = history;
+        if (h != null && h.key.equals(key)) {
+            return h;
+        }
+        synchronized (this) {
+            h = history;
+            if (h == null || !h.key.equals(key)) {
+                Map<String, List<TrendPoint>> all = loadHistory(action, lastCompleted);
+                Map<String, List<TrendPoint>> points = new LinkedHashMap<String, List<TrendPoint>>();
+                int target = getTrendPoints();
+                for (Map.Entry<String, List<TrendPoint>> e : all.entrySet()) {
+                    e.setValue(Collections.unmodifiableList(e.getValue()));
+                    points.put(e.getKey(), Collections.unmodifiableList(TrendSampler.downsample(e.getValue(), target)));
                 }
+                h = new History(key, Collections.unmodifiableMap(all), Collections.unmodifiableMap(points));
+                history = h;
             }
+            return h;
         }
-        LOGGER.warning("Couldn't find the right result group for a trend graph for label '" + label + "'");
-        return null;
+    }
+
+    /**
+     * The points come from the project's {@link TrendStore}, so no build is
+     * loaded. They go up to the last completed build the history is kept
+     * under: builds still running aren't in the store anyway.
+     */
+    private Map<String, List<TrendPoint>> loadHistory(MetaLabeledTestResultGroupAction last, Run<?, ?> lastCompleted) {
+        int depth = getTrendDepth();
+        int lastBuildNumber = lastCompleted == null ? 0 : lastCompleted.getNumber();
+        int firstBuildNumber = project.getFirstBuild().getNumber();
+        if (lastBuildNumber - firstBuildNumber > depth) {
+            firstBuildNumber = lastBuildNumber - depth;
+        }
+
+        TrendStore store = TrendStore.get(project);
+        if (!last.run.isBuilding() && !store.contains(last.run.getNumber())) {
+            // Completed before there was a store, or while we weren't listening
+            store.record(last.run);
+        }
+        return store.getPoints(last.getLabels(), firstBuildNumber, lastBuildNumber);
     }
 
 }
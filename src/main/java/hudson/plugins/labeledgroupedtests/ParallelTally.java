@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the expensive part of a full tally (tallying each child result, or
+ * each group) on several threads, for results big enough to be worth it.
+ * Adding up the counts afterwards is cheap and stays on the calling thread.
+ *
+ * The calling thread works through the tasks along with the helpers, so a
+ * tally that starts another parallel tally from one of the helpers (a result
+ * tallying a big group) still finishes, even when every pool thread is busy.
+ *
+ * The work is only split as far as the children: each child result is tallied
+ * on one thread. A group whose tests all sit in one child, such as a single
+ * junit TestResult from one big report mask, is still tallied serially.
+ */
+public final class ParallelTally {
+    /**
+     * How many threads to tally on, counting the calling one. 1 turns parallel tallies off.
+     */
+    public static int THREADS = Integer.getInteger(ParallelTally.class.getName() + ".threads", 1);
+
+    /**
+     * How many tests a result (or group) must have had the last time it was
+     * tallied before we tally it in parallel.
+     */
+    public static int THRESHOLD = Integer.getInteger(ParallelTally.class.getName() + ".threshold", 50000);
+
+    /**
+     * Sized from {@link #THREADS} when it's used, and resized in place when
+     * that changes: work already handed to it carries on, and nothing is
+     * turned away.
+     */
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+
+    private ParallelTally() {
+    }
+
+    /**
+     * @param tests how many tests there were last time, as an estimate of the work
+     * @param tasks how many pieces the work splits into
+     */
+    static boolean isWorthIt(int tests, int tasks) {
+        return THREADS > 1 && tasks > 1 && tests >= THRESHOLD;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        int size = Math.max(THREADS - 1, 1);
+        if (POOL.getCorePoolSize() != size) {
+            // The core size may never be above the maximum, so grow the maximum first and shrink it last
+            if (size > POOL.getMaximumPoolSize()) {
+                POOL.setMaximumPoolSize(size);
+                POOL.setCorePoolSize(size);
+            } else {
+                POOL.setCorePoolSize(size);
+                POOL.setMaximumPoolSize(size);
+            }
+        }
+        return POOL;
+    }
+
+    /**
+     * Run all the tasks and return when they're done.
+     *
+     * @throws RuntimeException the first one a task threw, once the others are done
+     */
+    static void runAll(List<? extends Runnable> tasks) {
+        final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>(tasks);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+            public void run() {
+                Runnable task;
+                while ((task = queue.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(THREADS, tasks.size()) - 1;
+        List<Future<?>> futures = new ArrayList<Future<?>>(helpers);
+        ExecutorService pool = getPool();
+        for (int i = 0; i < helpers; i++) {
+            futures.add(pool.submit(worker));
+        }
+        worker.run();
+
+        // The queue is empty now. Helpers that haven't started have nothing
+        // left to do; the others are finishing their last task.
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            if (f.cancel(false)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+}
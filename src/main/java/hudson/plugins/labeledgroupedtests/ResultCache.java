@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.Run;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps recently used {@link MetaLabeledTestResultGroup}s in memory, shared
+ * by every {@link MetaLabeledTestResultGroupAction} on this controller.
+ *
+ * The budget is counted in tests rather than bytes, since the size of a loaded
+ * result grows with the number of tests in it and the heap can't tell us more
+ * precisely than that. Once the results held add up to more tests than the
+ * budget, the least recently used ones are dropped. A single result bigger
+ * than the whole budget isn't cached at all.
+ *
+ * Results are kept by build rather than by action, so that an action loaded
+ * again for the same build takes the place of the old one instead of leaving
+ * it pinned next to it.
+ */
+public final class ResultCache {
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class.getName());
+
+    /**
+     * How many tests' worth of results to keep in memory, across all builds.
+     */
+    public static int MAX_TESTS = Integer.getInteger(ResultCache.class.getName() + ".maxTests", 500000);
+
+    private static final ResultCache INSTANCE = new ResultCache();
+
+    public static ResultCache get() {
+        return INSTANCE;
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class Entry {
+        final MetaLabeledTestResultGroupAction action;
+        final MetaLabeledTestResultGroup result;
+        final int weight;
+
+        Entry(MetaLabeledTestResultGroupAction action, MetaLabeledTestResultGroup result, int weight) {
+            this.action = action;
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+
+    ResultCache() {
+    }
+
+    private static String key(Run<?, ?> run) {
+        return run.getParent().getFullName() + "#" + run.getNumber();
+    }
+
+    /**
+     * @return the cached result of the action, or null.
+     */
+    public synchronized MetaLabeledTestResultGroup get(MetaLabeledTestResultGroupAction action) {
+        Entry e = entries.get(key(action.run));
+        if (e == null || e.action != action) {
+            // Held for an older action of the same build, which the result still points back at
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.result;
+    }
+
+    public void put(MetaLabeledTestResultGroupAction action, MetaLabeledTestResultGroup result) {
+        // Weighing may tally the whole result; do it before anyone has to wait on us.
+        int w = weigh(result);
+        synchronized (this) {
+            remove(action.run);
+            if (w > MAX_TESTS) {
+                return;
+            }
+            entries.put(key(action.run), new Entry(action, result, w));
+            weight += w;
+            evict();
+        }
+    }
+
+    /**
+     * Drop whatever is held for the build.
+     */
+    public synchronized void remove(Run<?, ?> run) {
+        Entry e = entries.remove(key(run));
+        if (e != null) {
+            weight -= e.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (weight > MAX_TESTS && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            weight -= eldest.getValue().weight;
+            evictions++;
+            LOGGER.fine("Evicted the test result of " + eldest.getKey() + " from the cache");
+        }
+    }
+
+    /**
+     * Every result costs at least 1, so that empty results still count.
+     * Called without holding the lock.
+     */
+    private static int weigh(MetaLabeledTestResultGroup result) {
+        return result.getTotalCount() + 1;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return how many tests' worth of results are held right now
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache{size=" + entries.size() + ", tests=" + weight + "/" + MAX_TESTS
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+}
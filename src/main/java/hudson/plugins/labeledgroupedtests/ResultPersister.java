@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes published results to disk in the background, so that the publisher
+ * doesn't have to wait for the serialization. See
+ * {@link MetaLabeledTestResultGroupAction#ASYNC_PERSISTENCE}.
+ *
+ * When the queue is full, the publishing thread does the write itself, which
+ * keeps unwritten results from piling up in memory.
+ */
+final class ResultPersister {
+    private static final Logger LOGGER = Logger.getLogger(ResultPersister.class.getName());
+
+    /**
+     * How many results may wait to be written before publishers start writing their own.
+     */
+    public static int QUEUE_SIZE = Integer.getInteger(ResultPersister.class.getName() + ".queueSize", 16);
+
+    /**
+     * How many results are written at once.
+     */
+    public static int THREADS = Integer.getInteger(ResultPersister.class.getName() + ".threads", 1);
+
+    private static final ResultPersister INSTANCE = new ResultPersister();
+
+    static ResultPersister get() {
+        return INSTANCE;
+    }
+
+    private final ExecutorService writer = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private ResultPersister() {
+    }
+
+    /**
+     * A failed write is tried once more before giving up. Either way the result
+     * is unpinned once the write is over, so that a result that can't be written
+     * doesn't stay in memory for good; it's then only kept as long as the
+     * {@link ResultCache} has room for it.
+     *
+     * @return completes when the result is on disk; fails with the IOException
+     * if it couldn't be written even the second time.
+     */
+    Future<?> submit(final MetaLabeledTestResultGroupAction action, final MetaLabeledTestResultGroup r) {
+        return writer.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    try {
+                        action.persist(r);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to save the test result of " + action.run + "; trying again", e);
+                        action.persist(r);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to save the test result of " + action.run + "; giving up", e);
+                    throw e;
+                } finally {
+                    // Now it can be loaded again if need be
+                    action.unpin(r);
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The numbers of a {@link MetaLabeledTestResultGroup}, small enough to load
+ * on their own: overall and per-label counts and durations, and how they
+ * changed since the previous build with results.
+ *
+ * This is what build history, the job page and the trend graphs look at, so
+ * that they never have to deserialize the full result.
+ *
+ * A summary isn't changed once it's been handed out; the failure ages that are
+ * added when the build completes go into a copy.
+ */
+public class ResultSummary {
+    private int passCount;
+    private int failCount;
+    private int skipCount;
+    private float duration;
+    private boolean hasPrevious;
+    /** the build the diffs were worked out against, or 0 if there was none (or we don't know) */
+    private int previousBuild;
+    private int passDiff;
+    private int failDiff;
+    private int skipDiff;
+    private int totalDiff;
+    private boolean failureAgesRecorded;
+    private int failedSince;
+    private final Map<String, LabelSummary> labels = new LinkedHashMap<String, LabelSummary>();
+
+    /**
+     * Summarize a result.
+     *
+     * @param previous the summary of the previous build with results, for the diffs.
+     *                 May be null, in which case there are no diffs.
+     * @param previousBuild the number of the build {@code previous} belongs to
+     */
+    static ResultSummary summarize(MetaLabeledTestResultGroup r, ResultSummary previous, int previousBuild) {
+        ResultSummary s = new ResultSummary();
+        s.passCount = r.getPassCount();
+        s.failCount = r.getFailCount();
+        s.skipCount = r.getSkipCount();
+        s.duration = r.getDuration();
+        if (previous != null) {
+            s.hasPrevious = true;
+            s.previousBuild = previousBuild;
+            s.passDiff = s.getPassCount() - previous.getPassCount();
+            s.failDiff = s.getFailCount() - previous.getFailCount();
+            s.skipDiff = s.getSkipCount() - previous.getSkipCount();
+            s.totalDiff = s.getTotalCount() - previous.getTotalCount();
+        }
+        for (String label : r.getLabels()) {
+            LabeledTestResultGroup group = r.getGroupByLabel(label);
+            if (group == null) continue;
+            LabelSummary ls = new LabelSummary(label, group.getPassCount(), group.getFailCount(),
+                    group.getSkipCount(), group.getDuration());
+            LabelSummary prev = previous == null ? null : previous.getLabel(label);
+            if (prev != null) {
+                ls.hasPrevious = true;
+                ls.passDiff = ls.getPassCount() - prev.getPassCount();
+                ls.failDiff = ls.getFailCount() - prev.getFailCount();
+                ls.skipDiff = ls.getSkipCount() - prev.getSkipCount();
+                ls.totalDiff = ls.getTotalCount() - prev.getTotalCount();
+            }
+            s.labels.put(label, ls);
+        }
+        return s;
+    }
+
+    public int getPassCount() {
+        return passCount;
+    }
+
+    public int getFailCount() {
+        return failCount;
+    }
+
+    public int getSkipCount() {
+        return skipCount;
+    }
+
+    public int getTotalCount() {
+        return passCount + failCount + skipCount;
+    }
+
+    public float getDuration() {
+        return duration;
+    }
+
+    /**
+     * Whether there was a previous build to diff against.
+     */
+    public boolean hasPrevious() {
+        return hasPrevious;
+    }
+
+    /**
+     * Whether the diffs here were worked out against the given build's result,
+     * so they can be used as they are. They aren't once that build is deleted,
+     * and summaries from before the build was remembered don't say.
+     */
+    boolean isDiffedAgainst(MetaLabeledTestResultGroupAction previous) {
+        return hasPrevious && previous != null && previousBuild != 0
+                && previousBuild == previous.run.getNumber();
+    }
+
+    public int getPassDiff() {
+        return passDiff;
+    }
+
+    public int getFailDiff() {
+        return failDiff;
+    }
+
+    public int getSkipDiff() {
+        return skipDiff;
+    }
+
+    public int getTotalDiff() {
+        return totalDiff;
+    }
+
+    /**
+     * Whether {@link #getFailedSince()} and friends were recorded for this build.
+     * They're recorded when the build completes, so builds from before there
+     * was a {@link FailureAgeIndex} don't have them.
+     */
+    public boolean hasFailureAges() {
+        return failureAgesRecorded;
+    }
+
+    /**
+     * @return the build in which the current failure streak started, or 0 if this build passed
+     */
+    public int getFailedSince() {
+        return failedSince;
+    }
+
+    /**
+     * @return a copy of this summary with this build's failure ages from the index.
+     * The ages of single tests stay in the index.
+     */
+    ResultSummary withFailureAges(FailureAgeIndex index) {
+        ResultSummary s = new ResultSummary();
+        s.passCount = passCount;
+        s.failCount = failCount;
+        s.skipCount = skipCount;
+        s.duration = duration;
+        s.hasPrevious = hasPrevious;
+        s.previousBuild = previousBuild;
+        s.passDiff = passDiff;
+        s.failDiff = failDiff;
+        s.skipDiff = skipDiff;
+        s.totalDiff = totalDiff;
+        for (LabelSummary ls : labels.values()) {
+            s.labels.put(ls.getLabel(), new LabelSummary(ls, index.getFailedSince(ls.getLabel())));
+        }
+        s.failedSince = index.getFailedSince();
+        s.failureAgesRecorded = true;
+        return s;
+    }
+
+    public Collection<String> getLabels() {
+        return Collections.unmodifiableSet(labels.keySet());
+    }
+
+    /**
+     * @return the numbers for one label, or null if this build had no results with that label.
+     */
+    public LabelSummary getLabel(String label) {
+        return labels.get(label);
+    }
+
+    public Collection<LabelSummary> getLabelSummaries() {
+        return Collections.unmodifiableCollection(labels.values());
+    }
+
+    /**
+     * The numbers of a single {@link LabeledTestResultGroup}.
+     */
+    public static class LabelSummary {
+        private final String label;
+        private final int passCount;
+        private final int failCount;
+        private final int skipCount;
+        private final float duration;
+        private boolean hasPrevious;
+        private int passDiff;
+        private int failDiff;
+        private int skipDiff;
+        private int totalDiff;
+        private int failedSince;
+
+        LabelSummary(String label, int passCount, int failCount, int skipCount, float duration) {
+            this.label = label;
+            this.passCount = passCount;
+            this.failCount = failCount;
+            this.skipCount = skipCount;
+            this.duration = duration;
+        }
+
+        private LabelSummary(LabelSummary from, int failedSince) {
+            this(from.label, from.passCount, from.failCount, from.skipCount, from.duration);
+            this.hasPrevious = from.hasPrevious;
+            this.passDiff = from.passDiff;
+            this.failDiff = from.failDiff;
+            this.skipDiff = from.skipDiff;
+            this.totalDiff = from.totalDiff;
+            this.failedSince = failedSince;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getPassCount() {
+            return passCount;
+        }
+
+        public int getFailCount() {
+            return failCount;
+        }
+
+        public int getSkipCount() {
+            return skipCount;
+        }
+
+        public int getTotalCount() {
+            return passCount + failCount + skipCount;
+        }
+
+        public float getDuration() {
+            return duration;
+        }
+
+        /**
+         * Whether the previous build had results with this label to diff against.
+         */
+        public boolean hasPrevious() {
+            return hasPrevious;
+        }
+
+        public int getPassDiff() {
+            return passDiff;
+        }
+
+        public int getFailDiff() {
+            return failDiff;
+        }
+
+        public int getSkipDiff() {
+            return skipDiff;
+        }
+
+        public int getTotalDiff() {
+            return totalDiff;
+        }
+
+        /**
+         * @return the build in which this label started failing, or 0 if it passed
+         */
+        public int getFailedSince() {
+            return failedSince;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.util.XStream2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores a {@link MetaLabeledTestResultGroup} as one file per label, plus a
+ * small manifest holding the counts and the list of labels. Reading the
+ * manifest gives back a result whose groups are only loaded from disk when
+ * someone asks for them.
+ *
+ * Each file is XML, and may have a {@link BinaryResultFile binary} copy next
+ * to it that's read instead. A binary copy that can't be read is skipped in
+ * favor of the XML.
+ */
+class SplitResultStore implements MetaLabeledTestResultGroup.GroupLoader {
+    private static final Logger LOGGER = Logger.getLogger(SplitResultStore.class.getName());
+    private static final String MANIFEST_NAME = "manifest";
+
+    private final File dir;
+
+    SplitResultStore(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * The manifest is written last, so a store without one is incomplete and
+     * shouldn't be read.
+     */
+    public boolean exists() {
+        return xmlFile(MANIFEST_NAME).exists() || binaryFile(MANIFEST_NAME).exists();
+    }
+
+    public void write(MetaLabeledTestResultGroup r, boolean binary) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        // Start over, so that a stale manifest can't point at a half-written store
+        deleteFile(MANIFEST_NAME);
+
+        Set<String> written = new HashSet<String>();
+        for (String label : r.getLabels()) {
+            LabeledTestResultGroup group = r.getGroupByLabel(label);
+            if (group == null) continue;
+            String name = fileNameFor(label);
+            // The group points back at the whole result; don't drag that into its file.
+            writeFile(name, group, binary, r);
+            written.add(name);
+        }
+
+        // Clean out groups left over from an earlier write
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                int dot = name.lastIndexOf('.');
+                if (dot > 0 && !written.contains(name.substring(0, dot))) {
+                    f.delete();
+                }
+            }
+        }
+
+        writeFile(MANIFEST_NAME, r.createManifest(), binary, null);
+    }
+
+    /**
+     * @return the manifest, ready to load its groups from this store on demand
+     */
+    public MetaLabeledTestResultGroup read() throws IOException {
+        MetaLabeledTestResultGroup manifest = (MetaLabeledTestResultGroup) readFile(MANIFEST_NAME);
+        manifest.setGroupLoader(this);
+        return manifest;
+    }
+
+    public LabeledTestResultGroup loadGroup(String label) {
+        try {
+            return (LabeledTestResultGroup) readFile(fileNameFor(label));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the '" + label + "' group from " + dir, e);
+        } catch (ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Unexpected content for the '" + label + "' group in " + dir, e);
+        }
+        return null;
+    }
+
+    private static String fileNameFor(String label) {
+        // Labels are alphanumeric plus spaces, but don't count on it
+        return "label-" + Util.rawEncode(label);
+    }
+
+    private Object readFile(String name) throws IOException {
+        BinaryResultFile binaryFile = binaryFile(name);
+        XmlFile xmlFile = xmlFile(name);
+        if (binaryFile.exists()) {
+            if (!xmlFile.exists()) {
+                return binaryFile.read();
+            }
+            try {
+                return binaryFile.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + binaryFile.getFile() + ", reading the XML instead", e);
+            }
+        }
+        return xmlFile.read();
+    }
+
+    /**
+     * @param omit written as null wherever the binary copy refers to it; the
+     *             XML never has it, since {@link #XSTREAM} skips a group's parent
+     */
+    private void writeFile(String name, Object o, boolean binary, Object omit) throws IOException {
+        xmlFile(name).write(o);
+        BinaryResultFile binaryFile = binaryFile(name);
+        if (binary) {
+            try {
+                binaryFile.write(o, omit);
+            } catch (InvalidClassException e) {
+                LOGGER.log(Level.FINE, "Not keeping a binary copy of " + binaryFile.getFile() + ": " + e.getMessage());
+                binaryFile.getFile().delete();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write " + binaryFile.getFile() + "; the XML will be read instead", e);
+                binaryFile.getFile().delete();
+            }
+        } else {
+            binaryFile.getFile().delete();
+        }
+    }
+
+    private void deleteFile(String name) {
+        xmlFile(name).delete();
+        binaryFile(name).getFile().delete();
+    }
+
+    private XmlFile xmlFile(String name) {
+        return new XmlFile(XSTREAM, new File(dir, name + ".xml"));
+    }
+
+    private BinaryResultFile binaryFile(String name) {
+        return new BinaryResultFile(new File(dir, name + ".bin"));
+    }
+
+    private static final XStream XSTREAM = new XStream2();
+
+    static {
+        // Each group is stored on its own; its parent is the manifest, and is
+        // hooked up again when the group is loaded.
+        XSTREAM.omitField(LabeledTestResultGroup.class, "parent");
+    }
+}
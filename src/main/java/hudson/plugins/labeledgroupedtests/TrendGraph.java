@@ -23,9 +23,11 @@
  */
 package hudson.plugins.labeledgroupedtests;
 
-import hudson.tasks.test.TestResult;
+import hudson.Util;
 import hudson.util.*;
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.CategoryAxis;
 import org.jfree.chart.axis.CategoryLabelPositions;
@@ -38,8 +40,15 @@ import org.jfree.ui.RectangleInsets;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * User: Benjamin Shine bshine
@@ -47,24 +56,81 @@ import java.io.IOException;
  * Time: 5:16:14 PM
  */
 public class TrendGraph extends Graph {
-    
-    protected final java.util.List<? extends TestResult> testResults;
+    /**
+     * How many bytes of rendered graphs (images and maps together) to keep,
+     * across all projects. The least recently used ones go first; a single
+     * rendering bigger than this isn't kept at all.
+     */
+    public static int CACHE_BYTES = Integer.getInteger(TrendGraph.class.getName() + ".cacheBytes", 4 * 1024 * 1024);
+
+    private static final int DEFAULT_WIDTH = 500;
+    private static final int DEFAULT_HEIGHT = 200;
+
+    /** Larger sizes asked for are drawn at these */
+    private static final int MAX_WIDTH = 2000;
+    private static final int MAX_HEIGHT = 1500;
+
+    /** Most recently used last; both guarded by the map */
+    private static final LinkedHashMap<String, Rendering> RENDERINGS = new LinkedHashMap<String, Rendering>(16, 0.75f, true);
+    private static long renderingsWeight;
+
+    /**
+     * One graph rendered at one size: the image, and the map that goes with it.
+     */
+    private static final class Rendering {
+        final byte[] png;
+        final String map;
+
+        Rendering(byte[] png, String map) {
+            this.png = png;
+            this.map = map;
+        }
+
+        /** Two bytes a character for the map */
+        long weight() {
+            return png.length + 2L * map.length();
+        }
+    }
+
+    protected java.util.List<TrendPoint> points;
     private final String yLabel;
     private final String relativeUrl;
     private boolean failureOnly;
+    private final long timestamp;
+    /** Identifies what this graph shows, or null to render it every time */
+    private final String cacheKey;
+
+    protected TrendGraph(String relativeUrl, String yLabel, java.util.List<TrendPoint> points) {
+        this(-1, null, relativeUrl, yLabel);
+        this.points = points;
+    }
 
-    protected TrendGraph(String relativeUrl, String yLabel, java.util.List<? extends TestResult> testResults) {
-        super(-1 /* timestamp */ ,500,200); // TODO: use a good timestamp, so we can take advantage of caching
+    /**
+     * A graph whose points are only worked out if it has to be rendered.
+     *
+     * @param timestamp when what the graph shows last changed
+     * @param cacheKey anything that changes whenever what the graph shows does
+     */
+    protected TrendGraph(long timestamp, String cacheKey, String relativeUrl, String yLabel) {
+        super(timestamp, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        this.timestamp = timestamp;
+        this.cacheKey = cacheKey;
         this.relativeUrl = relativeUrl;
         this.yLabel =  yLabel;
-        this.testResults = testResults;
         this.failureOnly = false;
     }
 
+    /**
+     * Work out the points, for graphs that weren't given them.
+     */
+    protected java.util.List<TrendPoint> loadPoints() {
+        return Collections.emptyList();
+    }
+
     protected DataSetBuilder<String, ChartLabel> createDataSet() {
         DataSetBuilder<String, ChartLabel> data = new DataSetBuilder<String, ChartLabel>();
 
-        for (TestResult o: getList()) {
+        for (TrendPoint o: getList()) {
             data.add(o.getFailCount(), "0Failed", new ChartLabel(o));
             if (!failureOnly) {
                 data.add(o.getSkipCount(), "1Skipped", new ChartLabel(o));
@@ -78,7 +144,33 @@ public class TrendGraph extends Graph {
     @Override
     public void doPng(StaplerRequest req, StaplerResponse rsp) throws IOException {
         this.failureOnly = Boolean.valueOf(req.getParameter("failureOnly"));        
-        super.doPng(req, rsp);
+        if (cacheKey == null) {
+            super.doPng(req, rsp);
+            return;
+        }
+        String key = renderingKey(req);
+        if (notModified(req, rsp, key)) {
+            return;
+        }
+        Rendering rendering;
+        try {
+            rendering = getRendering(req, key);
+        } catch (Error e) {
+            /* OpenJDK on ARM produces an error like this in case of headless error */
+            if (e.getMessage() != null && e.getMessage().contains("Probable fatal error:No fonts found")) {
+                rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+                return;
+            }
+            throw e; // otherwise let the caller deal with it
+        } catch (HeadlessException e) {
+            // not available. send out error message
+            rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+            return;
+        }
+        rsp.setContentType("image/png");
+        ServletOutputStream os = rsp.getOutputStream();
+        os.write(rendering.png);
+        os.close();
     }
 
     /**
@@ -87,11 +179,118 @@ public class TrendGraph extends Graph {
     @Override
     public void doMap(StaplerRequest req, StaplerResponse rsp) throws IOException {
         this.failureOnly = Boolean.valueOf(req.getParameter("failureOnly"));
-        super.doMap(req, rsp);
+        if (cacheKey == null) {
+            super.doMap(req, rsp);
+            return;
+        }
+        String key = renderingKey(req);
+        if (notModified(req, rsp, key)) {
+            return;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().println(getRendering(req, key).map);
     }
 
-    public java.util.List<? extends TestResult> getList() {
-        return testResults;
+    private String renderingKey(StaplerRequest req) {
+        return cacheKey + ":" + failureOnly + ":" + getSize(req, "width", DEFAULT_WIDTH, MAX_WIDTH)
+                + "x" + getSize(req, "height", DEFAULT_HEIGHT, MAX_HEIGHT);
+    }
+
+    /**
+     * The size asked for, kept between 1 and the largest we draw.
+     */
+    private static int getSize(StaplerRequest req, String name, int defaultSize, int maxSize) {
+        String size = req.getParameter(name);
+        if (size == null) {
+            return defaultSize;
+        }
+        try {
+            return Math.max(1, Math.min(maxSize, Integer.parseInt(size)));
+        } catch (NumberFormatException e) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Answer with a 304 if the browser already has this graph. Each graph
+     * has an ETag for what it shows and how, and a Last-Modified time.
+     */
+    private boolean notModified(StaplerRequest req, StaplerResponse rsp, String key) {
+        return notModified(req, rsp, key, timestamp);
+    }
+
+    /**
+     * Answer with a 304 if the browser already has what the key stands for.
+     * A browser that sends the ETag it has is answered on that alone: the
+     * key covers more than the time does, such as the trend depth. The time
+     * only counts for browsers that don't send an ETag.
+     *
+     * @param timestamp when what the key stands for last changed
+     */
+    static boolean notModified(StaplerRequest req, StaplerResponse rsp, String key, long timestamp) {
+        String etag = '"' + Util.getDigestOf(key) + '"';
+        rsp.setHeader("ETag", etag);
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return req.checkIfModified(timestamp, rsp);
+        }
+        rsp.setDateHeader("Last-Modified", timestamp);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals(etag) || tag.equals("*")) {
+                rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The image and map, rendered together and only once for as long as
+     * they stay in the cache.
+     */
+    private Rendering getRendering(StaplerRequest req, String key) throws IOException {
+        synchronized (RENDERINGS) {
+            Rendering rendering = RENDERINGS.get(key);
+            if (rendering != null) {
+                return rendering;
+            }
+        }
+        ChartRenderingInfo info = new ChartRenderingInfo();
+        BufferedImage image = createGraph().createBufferedImage(
+                getSize(req, "width", DEFAULT_WIDTH, MAX_WIDTH), getSize(req, "height", DEFAULT_HEIGHT, MAX_HEIGHT), info);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "PNG", png);
+        Rendering rendering = new Rendering(png.toByteArray(), ChartUtilities.getImageMap("map", info));
+        cache(key, rendering);
+        return rendering;
+    }
+
+    private static void cache(String key, Rendering rendering) {
+        long weight = rendering.weight();
+        synchronized (RENDERINGS) {
+            Rendering old = RENDERINGS.remove(key);
+            if (old != null) {
+                renderingsWeight -= old.weight();
+            }
+            if (weight > CACHE_BYTES) {
+                return;
+            }
+            RENDERINGS.put(key, rendering);
+            renderingsWeight += weight;
+            Iterator<Rendering> it = RENDERINGS.values().iterator();
+            while (renderingsWeight > CACHE_BYTES && it.hasNext()) {
+                renderingsWeight -= it.next().weight();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized java.util.List<TrendPoint> getList() {
+        if (points == null) {
+            points = loadPoints();
+        }
+        return points;
     }
 
     protected JFreeChart createGraph() {
@@ -169,14 +368,14 @@ public class TrendGraph extends Graph {
 }
 
 class ChartLabel implements Comparable<ChartLabel> {
-    TestResult o;
-    public ChartLabel(TestResult o) {
+    TrendPoint o;
+    public ChartLabel(TrendPoint o) {
         this.o = o;
     }
 
     public String getToolTipText() {
         StringBuilder sb = new StringBuilder();
-        sb.append(o.getOwner() != null ? "#" +  o.getOwner().getNumber() : "(#)" );
+        sb.append("#").append(o.getBuildNumber());
         if (o.getDuration() != 0) {
             sb.append(" ").append(o.getDurationString());
         }
@@ -184,30 +383,13 @@ class ChartLabel implements Comparable<ChartLabel> {
     }
 
     public String getURL() {
-        if (o==null||o.getOwner()==null) {
-            return "";
-        }
-        return String.valueOf(o.getOwner().number);
+        return String.valueOf(o.getBuildNumber());
     }
 
-    /**
-     * This implementation of compareTo might not be entirely
-     * consistent with equals for cases where either object being
-     * compared has a null test object or owner.
-     * @see {http://java.sun.com/javase/6/docs/api/java/lang/Comparable.html}
-     * @param that
-     * @return
-     */
     public int compareTo(ChartLabel that) {
         if (that==null)
             throw new NullPointerException();
-        if (this.o == that.o)
-            return 0;
-        if (that.o==null || that.o.getOwner()==null)
-            return 1;
-        if (this.o==null || this.o.getOwner()==null)
-            return -1;
-        return this.o.getOwner().number - that.o.getOwner().number;
+        return this.o.getBuildNumber() - that.o.getBuildNumber();
     }
 
     @Override
@@ -230,10 +412,8 @@ class ChartLabel implements Comparable<ChartLabel> {
 
     @Override
     public String toString() {
-        if (o==null || o.getOwner()==null) 
-            return "-";
-        String l = o.getOwner().getDisplayName();
-        String s = o.getOwner().getBuiltOnStr();
+        String l = o.getDisplayName();
+        String s = o.getBuiltOn();
         if (s != null)
             l += ' ' + s;
         return l;
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+
+/**
+ * One build's worth of numbers on a {@link TrendGraph}.
+ */
+public class TrendPoint {
+    private final int buildNumber;
+    private final String displayName;
+    private final String builtOn;
+    private final int passCount;
+    private final int failCount;
+    private final int skipCount;
+    private final float duration;
+
+    public TrendPoint(AbstractBuild<?, ?> build, int passCount, int failCount, int skipCount, float duration) {
+        this(build.getNumber(), build.getDisplayName(), build.getBuiltOnStr(), passCount, failCount, skipCount, duration);
+    }
+
+    public TrendPoint(int buildNumber, String displayName, String builtOn,
+                      int passCount, int failCount, int skipCount, float duration) {
+        this.buildNumber = buildNumber;
+        this.displayName = displayName;
+        this.builtOn = builtOn;
+        this.passCount = passCount;
+        this.failCount = failCount;
+        this.skipCount = skipCount;
+        this.duration = duration;
+    }
+
+    /**
+     * The point for one label of a build, or an empty point if the build
+     * had no results with that label.
+     */
+    public static TrendPoint of(AbstractBuild<?, ?> build, ResultSummary.LabelSummary summary) {
+        if (summary == null) {
+            return new TrendPoint(build, 0, 0, 0, 0);
+        }
+        return new TrendPoint(build, summary.getPassCount(), summary.getFailCount(),
+                summary.getSkipCount(), summary.getDuration());
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return the name of the node the build ran on, or null if unknown.
+     */
+    public String getBuiltOn() {
+        return builtOn;
+    }
+
+    public int getPassCount() {
+        return passCount;
+    }
+
+    public int getFailCount() {
+        return failCount;
+    }
+
+    public int getSkipCount() {
+        return skipCount;
+    }
+
+    public int getTotalCount() {
+        return passCount + failCount + skipCount;
+    }
+
+    public float getDuration() {
+        return duration;
+    }
+
+    public String getDurationString() {
+        return Util.getTimeSpanString((long) (duration * 1000));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thins a trend down to a fixed number of points with the
+ * largest-triangle-three-buckets algorithm, so that the outline of a long
+ * history (and its spikes) survives while the graph costs the same to draw
+ * as a short one.
+ */
+final class TrendSampler {
+    private TrendSampler() {
+    }
+
+    /**
+     * @param points  oldest first
+     * @param target  how many points to keep; 0 or less keeps them all
+     * @return the points kept, oldest first. The first and last are always kept.
+     */
+    static List<TrendPoint> downsample(List<TrendPoint> points, int target) {
+        int size = points.size();
+        if (target <= 0 || size <= target) {
+            return points;
+        }
+        if (target < 3) {
+            target = 3;
+        }
+        List<TrendPoint> sampled = new ArrayList<TrendPoint>(target);
+        sampled.add(points.get(0));
+
+        // The points between the first and the last are split into buckets,
+        // and from each bucket we keep the point that makes the largest
+        // triangle with the point kept before it and the average of the next
+        // bucket.
+        double bucketSize = (double) (size - 2) / (target - 2);
+        TrendPoint previous = points.get(0);
+        for (int bucket = 0; bucket < target - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+
+            int nextStart = end;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, size);
+            if (nextStart >= nextEnd) {
+                nextStart = size - 1;
+                nextEnd = size;
+            }
+            double avgX = 0, avgFail = 0, avgSkip = 0, avgPass = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                TrendPoint p = points.get(i);
+                avgX += p.getBuildNumber();
+                avgFail += p.getFailCount();
+                avgSkip += p.getSkipCount();
+                avgPass += p.getPassCount();
+            }
+            int count = nextEnd - nextStart;
+            avgX /= count;
+            avgFail /= count;
+            avgSkip /= count;
+            avgPass /= count;
+
+            TrendPoint kept = null;
+            double largest = -1;
+            for (int i = start; i < end; i++) {
+                TrendPoint p = points.get(i);
+                // The graph stacks three series, so a spike in any of them counts
+                double area = area(previous.getBuildNumber(), previous.getFailCount(), p.getBuildNumber(), p.getFailCount(), avgX, avgFail)
+                        + area(previous.getBuildNumber(), previous.getSkipCount(), p.getBuildNumber(), p.getSkipCount(), avgX, avgSkip)
+                        + area(previous.getBuildNumber(), previous.getPassCount(), p.getBuildNumber(), p.getPassCount(), avgX, avgPass);
+                if (area > largest) {
+                    largest = area;
+                    kept = p;
+                }
+            }
+            sampled.add(kept);
+            previous = kept;
+        }
+
+        sampled.add(points.get(size - 1));
+        return sampled;
+    }
+
+    private static double area(double ax, double ay, double bx, double by, double cx, double cy) {
+        return Math.abs((ax - cx) * (by - ay) - (ax - bx) * (cy - ay));
+    }
+}
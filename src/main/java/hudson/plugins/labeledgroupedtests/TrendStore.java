@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.test.AbstractTestResultAction;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The numbers behind a project's trend graphs: for every build, the counts
+ * and duration of each label. Kept in one small file in the project's
+ * directory, so drawing a graph doesn't have to load any build.
+ *
+ * The file is only ever appended to: a record when a build completes, and a
+ * tombstone when one is deleted. When superseded records and tombstones
+ * outnumber the live ones, it's rewritten. If it's missing, it's rebuilt from
+ * the builds themselves.
+ */
+public final class TrendStore {
+    private static final Logger LOGGER = Logger.getLogger(TrendStore.class.getName());
+
+    static final String FILENAME = "labeledTestTrends.dat";
+    private static final int MAGIC = 0x4c545453; // "LTTS"
+    static final short VERSION = 1;
+
+    private static final byte RESULTS = 1;
+    /** A build with a plain test result, which the "unit" graph shows */
+    private static final byte LEGACY_RESULTS = 2;
+    private static final byte TOMBSTONE = 3;
+
+    /** Doesn't hold on to the jobs; the stores don't refer to them either */
+    private static final Map<Job<?, ?>, TrendStore> STORES = new WeakHashMap<Job<?, ?>, TrendStore>();
+
+    private final File file;
+    private final TreeMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+    /** Records in the file that don't count any more */
+    private int garbage;
+    /** Whether {@link #load} has run; guarded by this store, like the entries */
+    private boolean loaded;
+
+    /**
+     * One build's worth of numbers.
+     */
+    private static final class Entry {
+        final boolean legacy;
+        final Map<String, TrendPoint> labels;
+
+        Entry(boolean legacy, Map<String, TrendPoint> labels) {
+            this.legacy = legacy;
+            this.labels = labels;
+        }
+    }
+
+    private TrendStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * The store for a project, loading it (or building it, the first time) if need be.
+     * The load only holds up callers that want the same project's store.
+     */
+    public static TrendStore get(Job<?, ?> job) {
+        TrendStore store;
+        synchronized (STORES) {
+            store = STORES.get(job);
+            if (store == null) {
+                store = new TrendStore(new File(job.getRootDir(), FILENAME));
+                STORES.put(job, store);
+            }
+        }
+        store.ensureLoaded(job);
+        return store;
+    }
+
+    private synchronized void ensureLoaded(Job<?, ?> job) {
+        if (!loaded) {
+            try {
+                load(job);
+            } catch (RuntimeException e) {
+                // Start over next time rather than building on half a load
+                entries.clear();
+                garbage = 0;
+                throw e;
+            }
+            loaded = true;
+        }
+    }
+
+    /**
+     * The store for a project, if it has one.
+     */
+    static TrendStore peek(Job<?, ?> job) {
+        synchronized (STORES) {
+            if (!STORES.containsKey(job) && !new File(job.getRootDir(), FILENAME).exists()) {
+                return null;
+            }
+        }
+        return get(job);
+    }
+
+    /**
+     * The points for one label, for the builds numbered first to last. Builds
+     * that had results, but none with this label, show up as empty points.
+     */
+    public List<TrendPoint> getPoints(String label, int first, int last) {
+        return getPoints(Collections.singleton(label), first, last).get(label);
+    }
+
+    /**
+     * The points for several labels, from one pass over the builds.
+     *
+     * @return label to points, in the order of the labels given
+     */
+    public synchronized Map<String, List<TrendPoint>> getPoints(Collection<String> labels, int first, int last) {
+        Map<String, List<TrendPoint>> points = new LinkedHashMap<String, List<TrendPoint>>();
+        SortedMap<Integer, Entry> range = (first > last)
+                ? new TreeMap<Integer, Entry>() : entries.subMap(first, last + 1);
+        for (String label : labels) {
+            points.put(label, new ArrayList<TrendPoint>(range.size()));
+        }
+        for (Map.Entry<Integer, Entry> e : range.entrySet()) {
+            Entry entry = e.getValue();
+            TrendPoint empty = null;
+            for (String label : labels) {
+                TrendPoint point = entry.labels.get(label);
+                if (point == null && !entry.legacy) {
+                    if (empty == null) {
+                        TrendPoint any = entry.labels.isEmpty() ? null : entry.labels.values().iterator().next();
+                        empty = new TrendPoint(e.getKey(), any == null ? "#" + e.getKey() : any.getDisplayName(),
+                                any == null ? null : any.getBuiltOn(), 0, 0, 0, 0);
+                    }
+                    point = empty;
+                }
+                if (point != null) {
+                    points.get(label).add(point);
+                }
+            }
+        }
+        return points;
+    }
+
+    public synchronized boolean contains(int buildNumber) {
+        return entries.containsKey(buildNumber);
+    }
+
+    /**
+     * Add (or replace) the numbers for a build.
+     */
+    public synchronized void record(Run<?, ?> run) {
+        Entry entry = toEntry(run);
+        if (entry == null) {
+            return;
+        }
+        if (entries.put(run.getNumber(), entry) != null) {
+            garbage++;
+        }
+        if (!file.exists()) {
+            compact();
+            return;
+        }
+        try {
+            DataOutputStream out = openForAppend();
+            try {
+                writeEntry(out, run.getNumber(), entry);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to add build " + run.getNumber() + " to " + file, e);
+        }
+    }
+
+    /**
+     * Forget a build that's been deleted.
+     */
+    public synchronized void remove(int buildNumber) {
+        if (entries.remove(buildNumber) == null) {
+            return;
+        }
+        garbage += 2; // its record, and the tombstone
+        if (!file.exists() || garbage > entries.size()) {
+            compact();
+            return;
+        }
+        try {
+            DataOutputStream out = openForAppend();
+            try {
+                out.writeByte(TOMBSTONE);
+                out.writeInt(buildNumber);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove build " + buildNumber + " from " + file, e);
+        }
+    }
+
+    private static Entry toEntry(Run<?, ?> run) {
+        String builtOn = (run instanceof AbstractBuild) ? ((AbstractBuild<?, ?>) run).getBuiltOnStr() : null;
+        MetaLabeledTestResultGroupAction action = run.getAction(MetaLabeledTestResultGroupAction.class);
+        if (action != null) {
+            Map<String, TrendPoint> labels = new LinkedHashMap<String, TrendPoint>();
+            for (ResultSummary.LabelSummary ls : action.getSummary().getLabelSummaries()) {
+                labels.put(ls.getLabel(), new TrendPoint(run.getNumber(), run.getDisplayName(), builtOn,
+                        ls.getPassCount(), ls.getFailCount(), ls.getSkipCount(), ls.getDuration()));
+            }
+            return new Entry(false, labels);
+        }
+        // We pretend that all legacy data is marked as "unit"
+        AbstractTestResultAction legacyAction = run.getAction(AbstractTestResultAction.class);
+        if (legacyAction != null) {
+            int failCount = legacyAction.getFailCount();
+            int skipCount = legacyAction.getSkipCount();
+            int passCount = legacyAction.getTotalCount() - failCount - skipCount;
+            return new Entry(true, Collections.singletonMap("unit",
+                    new TrendPoint(run.getNumber(), run.getDisplayName(), builtOn, passCount, failCount, skipCount, 0)));
+        }
+        return null;
+    }
+
+    private void load(Job<?, ?> job) {
+        if (file.exists()) {
+            try {
+                read();
+                if (garbage > entries.size()) {
+                    compact();
+                }
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + ", rebuilding it", e);
+                entries.clear();
+            }
+        }
+        for (Run<?, ?> run : job.getBuilds()) {
+            if (run.isBuilding()) {
+                continue;
+            }
+            Entry entry = toEntry(run);
+            if (entry != null) {
+                entries.put(run.getNumber(), entry);
+            }
+        }
+        compact();
+    }
+
+    private void read() throws IOException {
+        byte[] data = readFully();
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        int valid;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a trend store");
+            }
+            short version = in.readShort();
+            if (version > VERSION) {
+                throw new IOException(file + " has format version " + version + ", but we only know up to " + VERSION);
+            }
+            valid = data.length - bytes.available();
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        }
+        try {
+            while (bytes.available() > 0) {
+                byte type = in.readByte();
+                int number = in.readInt();
+                if (type == TOMBSTONE) {
+                    entries.remove(number);
+                    garbage += 2;
+                } else if (type == RESULTS || type == LEGACY_RESULTS) {
+                    String displayName = in.readUTF();
+                    String builtOn = in.readBoolean() ? in.readUTF() : null;
+                    int count = in.readShort();
+                    Map<String, TrendPoint> labels = new LinkedHashMap<String, TrendPoint>();
+                    for (int i = 0; i < count; i++) {
+                        String label = in.readUTF();
+                        labels.put(label, new TrendPoint(number, displayName, builtOn,
+                                in.readInt(), in.readInt(), in.readInt(), in.readFloat()));
+                    }
+                    if (entries.put(number, new Entry(type == LEGACY_RESULTS, labels)) != null) {
+                        garbage++;
+                    }
+                } else {
+                    throw new IOException(file + " has a record of unknown type " + type);
+                }
+                valid = data.length - bytes.available();
+            }
+        } catch (EOFException e) {
+            // The last record was cut short, most likely by a crash. Drop it,
+            // so the next one doesn't get appended to a half-written record.
+            LOGGER.warning(file + " ends with an incomplete record; dropping it");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private byte[] readFully() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            if (read < data.length) {
+                byte[] shorter = new byte[read];
+                System.arraycopy(data, 0, shorter, 0, read);
+                return shorter;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static void writeEntry(DataOutputStream out, int number, Entry entry) throws IOException {
+        out.writeByte(entry.legacy ? LEGACY_RESULTS : RESULTS);
+        out.writeInt(number);
+        TrendPoint any = entry.labels.isEmpty() ? null : entry.labels.values().iterator().next();
+        out.writeUTF(any == null ? "#" + number : any.getDisplayName());
+        String builtOn = (any == null) ? null : any.getBuiltOn();
+        out.writeBoolean(builtOn != null);
+        if (builtOn != null) {
+            out.writeUTF(builtOn);
+        }
+        out.writeShort(entry.labels.size());
+        for (Map.Entry<String, TrendPoint> e : entry.labels.entrySet()) {
+            TrendPoint p = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(p.getPassCount());
+            out.writeInt(p.getFailCount());
+            out.writeInt(p.getSkipCount());
+            out.writeFloat(p.getDuration());
+        }
+    }
+
+    /**
+     * Rewrite the file with just the live records, to a temporary file that's
+     * renamed into place.
+     */
+    private void compact() {
+        try {
+            File tmp = File.createTempFile("atomic", "tmp", file.getParentFile());
+            boolean committed = false;
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeShort(VERSION);
+                    for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+                        writeEntry(out, e.getKey(), e.getValue());
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    // Windows won't rename over an existing file
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Failed to rename " + tmp + " to " + file);
+                    }
+                }
+                committed = true;
+                garbage = 0;
+            } finally {
+                if (!committed) {
+                    tmp.delete();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+}
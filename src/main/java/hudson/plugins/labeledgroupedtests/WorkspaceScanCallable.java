@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.labeledgroupedtests;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Walks the workspace once for the union of several file masks, and sorts the
+ * matched files back out to the mask (or masks) that asked for them.
+ */
+class WorkspaceScanCallable implements FilePath.FileCallable<WorkspaceScanCallable.Scan> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> fileMasks;
+
+    WorkspaceScanCallable(List<String> fileMasks) {
+        this.fileMasks = new ArrayList<String>(fileMasks);
+    }
+
+    public Scan invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        StringBuilder union = new StringBuilder();
+        List<String[]> patternsPerMask = new ArrayList<String[]>(fileMasks.size());
+        for (String fileMask : fileMasks) {
+            List<String> patterns = new ArrayList<String>();
+            // Split the same way Util.createFileSet does
+            StringTokenizer tokens = new StringTokenizer(fileMask, ",");
+            while (tokens.hasMoreTokens()) {
+                String token = tokens.nextToken().trim();
+                if (token.length() == 0) continue;
+                patterns.add(normalizePattern(token));
+                if (union.length() > 0) union.append(',');
+                union.append(token);
+            }
+            patternsPerMask.add(patterns.toArray(new String[patterns.size()]));
+        }
+
+        Scan scan = new Scan(fileMasks.size());
+        if (union.length() == 0) {
+            return scan;
+        }
+        String[] included = Util.createFileSet(ws, union.toString()).getDirectoryScanner().getIncludedFiles();
+        for (String path : included) {
+            int owner = -1;
+            for (int i = 0; i < patternsPerMask.size(); i++) {
+                if (matchesAny(patternsPerMask.get(i), path)) {
+                    if (owner < 0) {
+                        owner = i;
+                        scan.files.get(i).add(path.replace(File.separatorChar, '/'));
+                    } else {
+                        scan.addOverlap(path.replace(File.separatorChar, '/'), owner, i);
+                    }
+                }
+            }
+        }
+        return scan;
+    }
+
+    private static boolean matchesAny(String[] patterns, String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bring a pattern into the form {@link org.apache.tools.ant.DirectoryScanner}
+     * matches against, so that we agree with it on what an include means.
+     */
+    static String normalizePattern(String pattern) {
+        String p = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+        if (p.endsWith(File.separator)) {
+            p += "**";
+        }
+        return p;
+    }
+
+    /**
+     * What one scan found: the files for each mask, in mask order, and the files
+     * that more than one mask asked for. A file always goes to the first mask
+     * that matched it.
+     */
+    static class Scan implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final List<List<String>> files;
+        /** workspace-relative path to the indexes of every mask that matched it */
+        final Map<String, List<Integer>> overlaps = new LinkedHashMap<String, List<Integer>>();
+
+        Scan(int maskCount) {
+            files = new ArrayList<List<String>>(maskCount);
+            for (int i = 0; i < maskCount; i++) {
+                files.add(new ArrayList<String>());
+            }
+        }
+
+        void addOverlap(String path, int owner, int other) {
+            List<Integer> masks = overlaps.get(path);
+            if (masks == null) {
+                masks = new ArrayList<Integer>(2);
+                masks.add(owner);
+                overlaps.put(path, masks);
+            }
+            masks.add(other);
+        }
+    }
+}
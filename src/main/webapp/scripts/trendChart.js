@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010, Yahoo!, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/*
+ * Draws the per-label test trends on the project page from one request to
+ * groupedTests/trendData, instead of one PNG (and one image map) per label.
+ * Each chart is a <div class="labeled-test-trend"> with data-label and
+ * data-png attributes; if the browser can't draw on a canvas, or the data
+ * can't be fetched, the div gets the server-rendered PNG instead.
+ *
+ * The colors and stacking match the PNG: failures at the bottom, then skips,
+ * then passes.
+ */
+var labeledTestTrends = (function() {
+    var COLORS = ["#EF2929", "#FCE94F", "#729FCF"]; // failed, skipped, passed
+    var PAD_LEFT = 40, PAD_RIGHT = 10, PAD_TOP = 10, PAD_BOTTOM = 20;
+
+    function charts() {
+        var all = document.getElementsByTagName("div");
+        var found = [];
+        for (var i = 0; i < all.length; i++) {
+            if ((" " + all[i].className + " ").indexOf(" labeled-test-trend ") >= 0) {
+                found.push(all[i]);
+            }
+        }
+        return found;
+    }
+
+    function fallback(div) {
+        if (div.getAttribute("data-drawn")) {
+            return;
+        }
+        div.setAttribute("data-drawn", "png");
+        var img = document.createElement("img");
+        img.src = div.getAttribute("data-png");
+        img.alt = "[Test result trend chart for group '" + div.getAttribute("data-label") + "']";
+        div.appendChild(img);
+    }
+
+    function parse(text) {
+        if (window.JSON && JSON.parse) {
+            return JSON.parse(text);
+        }
+        return eval("(" + text + ")");
+    }
+
+    function niceMax(max) {
+        if (max <= 0) {
+            return 1;
+        }
+        var step = Math.pow(10, Math.floor(Math.log(max) / Math.LN10));
+        var ceil = Math.ceil(max / step) * step;
+        return ceil < max ? ceil + step : ceil;
+    }
+
+    function formatDuration(seconds) {
+        if (seconds < 60) {
+            return Math.round(seconds * 10) / 10 + " sec";
+        }
+        var minutes = Math.floor(seconds / 60);
+        return minutes + " min " + Math.round(seconds - minutes * 60) + " sec";
+    }
+
+    function draw(div, series, failureOnly) {
+        var n = series.builds.length;
+        if (n == 0) {
+            fallback(div);
+            return;
+        }
+        var width = div.offsetWidth || 500, height = div.offsetHeight || 200;
+        var canvas = document.createElement("canvas");
+        canvas.width = width;
+        canvas.height = height;
+        canvas.style.cursor = "pointer";
+        div.appendChild(canvas);
+        div.setAttribute("data-drawn", "canvas");
+        var ctx = canvas.getContext("2d");
+
+        // Stack the layers bottom up, like the PNG does
+        var layers = failureOnly ? [series.fail] : [series.fail, series.skip, series.pass];
+        var tops = [], max = 0, i, l;
+        for (l = 0; l < layers.length; l++) {
+            tops.push([]);
+            for (i = 0; i < n; i++) {
+                tops[l][i] = layers[l][i] + (l > 0 ? tops[l - 1][i] : 0);
+                max = Math.max(max, tops[l][i]);
+            }
+        }
+        max = niceMax(max);
+
+        var plotWidth = width - PAD_LEFT - PAD_RIGHT, plotHeight = height - PAD_TOP - PAD_BOTTOM;
+        function x(i) {
+            return PAD_LEFT + (n == 1 ? plotWidth / 2 : i * plotWidth / (n - 1));
+        }
+        function y(v) {
+            return PAD_TOP + plotHeight - v * plotHeight / max;
+        }
+
+        ctx.fillStyle = "#FFFFFF";
+        ctx.fillRect(0, 0, width, height);
+
+        for (l = layers.length - 1; l >= 0; l--) {
+            ctx.beginPath();
+            ctx.moveTo(x(0), y(0));
+            for (i = 0; i < n; i++) {
+                ctx.lineTo(x(i), y(tops[l][i]));
+            }
+            ctx.lineTo(x(n - 1), y(0));
+            ctx.closePath();
+            ctx.fillStyle = COLORS[l];
+            ctx.fill();
+        }
+
+        ctx.strokeStyle = "#000000";
+        ctx.fillStyle = "#000000";
+        ctx.font = "10px sans-serif";
+        ctx.textAlign = "right";
+        ctx.textBaseline = "middle";
+        for (var t = 0; t <= 4; t++) {
+            var v = max * t / 4;
+            ctx.globalAlpha = 0.3;
+            ctx.beginPath();
+            ctx.moveTo(PAD_LEFT, Math.round(y(v)) + 0.5);
+            ctx.lineTo(PAD_LEFT + plotWidth, Math.round(y(v)) + 0.5);
+            ctx.stroke();
+            ctx.globalAlpha = 1;
+            ctx.fillText(String(Math.round(v)), PAD_LEFT - 4, y(v));
+        }
+        ctx.textAlign = "center";
+        ctx.textBaseline = "top";
+        var every = Math.max(1, Math.ceil(n / Math.max(1, Math.floor(plotWidth / 40))));
+        for (i = 0; i < n; i += every) {
+            ctx.fillText(series.names[i], x(i), PAD_TOP + plotHeight + 4);
+        }
+
+        // Hover shows the build, a click opens its test report for this label
+        function nearest(event) {
+            var rect = canvas.getBoundingClientRect();
+            var px = event.clientX - rect.left;
+            var i = n == 1 ? 0 : Math.round((px - PAD_LEFT) * (n - 1) / plotWidth);
+            return Math.max(0, Math.min(n - 1, i));
+        }
+        canvas.onmousemove = function(event) {
+            var i = nearest(event || window.event);
+            var text = series.names[i] + ": " + series.fail[i] + " failed";
+            if (!failureOnly) {
+                text += ", " + series.skip[i] + " skipped, " + series.pass[i] + " passed";
+            }
+            canvas.title = text + " (" + formatDuration(series.duration[i]) + ")";
+        };
+        canvas.onclick = function(event) {
+            var i = nearest(event || window.event);
+            window.location.href = series.builds[i] + "/testReport/" + encodeURIComponent(div.getAttribute("data-label"));
+        };
+    }
+
+    return {
+        /**
+         * @param url          where the trend data is, relative to the page
+         * @param failureOnly  whether to show only the failure counts
+         */
+        draw: function(url, failureOnly) {
+            var divs = charts(), i;
+            var probe = document.createElement("canvas");
+            var request = window.XMLHttpRequest ? new XMLHttpRequest() : null;
+            if (!probe.getContext || request == null) {
+                for (i = 0; i < divs.length; i++) {
+                    fallback(divs[i]);
+                }
+                return;
+            }
+            request.onreadystatechange = function() {
+                if (request.readyState != 4) {
+                    return;
+                }
+                var data = null;
+                if (request.status == 200) {
+                    try {
+                        data = parse(request.responseText);
+                    } catch (e) {
+                        data = null;
+                    }
+                }
+                for (i = 0; i < divs.length; i++) {
+                    var series = data && data.labels[divs[i].getAttribute("data-label")];
+                    if (series) {
+                        draw(divs[i], series, failureOnly);
+                    } else {
+                        fallback(divs[i]);
+                    }
+                }
+            };
+            request.open("GET", url, true);
+            request.send(null);
+        }
+    };
+})();
@@ -31,22 +31,50 @@ import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
 import com.gargoylesoftware.htmlunit.Page;
 
 import hudson.tasks.junit.PackageResult;
+import hudson.FilePath;
+import hudson.Launcher;
 import hudson.model.*;
+import hudson.plugins.labeledgroupedtests.DurationTrendGraph;
 import hudson.plugins.labeledgroupedtests.MetaLabeledTestResultGroupAction;
 import hudson.plugins.labeledgroupedtests.MetaLabeledTestResultGroup;
+import hudson.plugins.labeledgroupedtests.CompactCaseResult;
+import hudson.plugins.labeledgroupedtests.CompactTestResult;
+import hudson.plugins.labeledgroupedtests.LabeledTestGroupConfiguration;
 import hudson.plugins.labeledgroupedtests.LabeledTestResultGroup;
+import hudson.plugins.labeledgroupedtests.LabeledTestResultGroupPublisher;
+import hudson.plugins.labeledgroupedtests.MetaLabeledTestResultGroupProjectAction;
+import hudson.plugins.labeledgroupedtests.ParallelTally;
+import hudson.plugins.labeledgroupedtests.ResultCache;
+import hudson.plugins.labeledgroupedtests.ResultSummary;
+import hudson.plugins.labeledgroupedtests.TrendPoint;
 import hudson.slaves.DumbSlave;
+import hudson.tasks.junit.JUnitParser;
+import hudson.tasks.test.TestObject;
 import hudson.tasks.test.TestResult;
+import hudson.tasks.test.TestResultParser;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 
 import org.jvnet.hudson.test.HudsonTestCase;
 import org.jvnet.hudson.test.recipes.LocalData;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Exercise a project with a known configuration using multiple test
@@ -193,6 +221,327 @@ public class CombinationOfParsersAndLabelsTest extends EnhancedHudsonTestCase {
         buildJavaGroupingProjectAndValidate(setupProject(JUST_JAVA_GROUPS));
     }
 
+    @LocalData
+    public void testIncrementalCountsMatchFullTally() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        int pass = result.getPassCount();
+        int fail = result.getFailCount();
+        int skip = result.getSkipCount();
+        float duration = result.getDuration();
+        result.tally();
+        assertEquals("pass count", result.getPassCount(), pass);
+        assertEquals("fail count", result.getFailCount(), fail);
+        assertEquals("skip count", result.getSkipCount(), skip);
+        assertEquals("duration", result.getDuration(), duration, 0.001f);
+    }
+
+    @LocalData
+    public void testFailureAges() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild first = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        FreeStyleBuild second = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup firstResult = first.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        MetaLabeledTestResultGroup secondResult = second.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        assertTrue("expected some failures", secondResult.getFailCount() > 0);
+        assertEquals("first build failed since", first.getNumber(), firstResult.getFailedSince());
+        assertEquals("second build failed since", first.getNumber(), secondResult.getFailedSince());
+        assertEquals("age", 2, secondResult.getAge());
+        assertSame(first, secondResult.getFailedSinceRun());
+        for (String label : secondResult.getLabels()) {
+            LabeledTestResultGroup group = secondResult.getGroupByLabel(label);
+            if (group.getFailCount() > 0) {
+                assertEquals("failed since for " + label, first.getNumber(), group.getFailedSince());
+                for (TestResult failed : group.getFailedTests()) {
+                    assertEquals("failed since for " + failed.getId(), first.getNumber(), group.getFailedSince(failed));
+                    // Earlier builds keep their own
+                    assertEquals("first build's failed since for " + failed.getId(), first.getNumber(),
+                            firstResult.getGroupByLabel(label).getFailedSince(failed));
+                }
+            }
+        }
+    }
+
+    @LocalData
+    public void testConcurrentReadsWhileAdding() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup built = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        final int builtTotal = built.getTotalCount();
+        final List<TestResult> results = new ArrayList<TestResult>(built.getChildren());
+        final MetaLabeledTestResultGroup result = new MetaLabeledTestResultGroup(null, "stress");
+        final int labels = 200;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<Throwable> problems = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread("reader-" + i) {
+                public void run() {
+                    try {
+                        int lastTotal = 0;
+                        while (!done.get()) {
+                            int total = result.getTotalCount();
+                            assertTrue("total went backwards", total >= lastTotal);
+                            lastTotal = total;
+                            for (TestResult r : result.getChildren()) {
+                                assertNotNull(r);
+                            }
+                            for (String label : result.getLabels()) {
+                                LabeledTestResultGroup group = result.getGroupByLabel(label);
+                                assertNotNull("no group for " + label, group);
+                                assertTrue(group.getTotalCount() >= group.getFailedTests().size());
+                                for (TestResult r : group.getChildren()) {
+                                    assertNotNull(r);
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        problems.add(t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        try {
+            for (int i = 0; i < labels; i++) {
+                for (TestResult r : results) {
+                    result.addTestResult("label" + i, r);
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertTrue("readers failed: " + problems, problems.isEmpty());
+        assertEquals("total count", labels * builtTotal, result.getTotalCount());
+        result.tally();
+        assertEquals("total count after a full tally", labels * builtTotal, result.getTotalCount());
+    }
+
+    @LocalData
+    public void testAddAllSkipsResultsAlreadyInTheGroup() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup built = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        for (String label : built.getLabels()) {
+            LabeledTestResultGroup original = built.getGroupByLabel(label);
+            List<TestResult> children = new ArrayList<TestResult>(original.getChildren());
+            LabeledTestResultGroup merged = new LabeledTestResultGroup(null, label, new ArrayList<TestResult>(children));
+            merged.addAll(original);
+            merged.addAll(original);
+            assertEquals("children of " + label, children, new ArrayList<TestResult>(merged.getChildren()));
+            assertEquals("total count of " + label, original.getTotalCount(), merged.getTotalCount());
+        }
+    }
+
+    @LocalData
+    public void testPerStatusTestsAndCachedChildren() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        assertEquals("failed tests", result.getFailCount(), result.getFailedTests().size());
+        assertEquals("passed tests", result.getPassCount(), result.getPassedTests().size());
+        assertEquals("skipped tests", result.getSkipCount(), result.getSkippedTests().size());
+        assertSame("children should be cached", result.getChildren(), result.getChildren());
+        assertSame("failed tests should be cached", result.getFailedTests(), result.getFailedTests());
+        int children = 0;
+        for (String label : result.getLabels()) {
+            children += result.getGroupByLabel(label).getChildren().size();
+        }
+        assertEquals("children", children, result.getChildren().size());
+    }
+
+    @LocalData
+    public void testFindCorrespondingResultIsIndexed() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+        for (String label : result.getLabels()) {
+            LabeledTestResultGroup group = result.getGroupByLabel(label);
+            assertSame("group for " + label, group, result.findCorrespondingResult(label));
+            assertSame("group for " + label + " again", group, result.findCorrespondingResult(label));
+            assertSame("group for " + label + "/", group, result.findCorrespondingResult(label + "/"));
+        }
+        assertNull(result.findCorrespondingResult("no_such_label"));
+        assertNull("misses are remembered too", result.findCorrespondingResult("no_such_label"));
+    }
+
+    @LocalData
+    public void testTrendGraphHistory() throws Exception {
+        FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        MetaLabeledTestResultGroupProjectAction projectAction = project.getAction(MetaLabeledTestResultGroupProjectAction.class);
+        for (String label : projectAction.getLabels()) {
+            assertEquals("points for " + label, 2, projectAction.getTrendGraph(label).getList().size());
+        }
+        assertNull(projectAction.getTrendGraph("no_such_label"));
+    }
+
+    @LocalData
+    public void testParallelJavaGrouping() throws Exception {
+        int oldThreads = LabeledTestResultGroupPublisher.PARSER_THREADS;
+        LabeledTestResultGroupPublisher.PARSER_THREADS = 4;
+        try {
+            buildJavaGroupingProjectAndValidate(setupProject(JUST_JAVA_GROUPS));
+        } finally {
+            LabeledTestResultGroupPublisher.PARSER_THREADS = oldThreads;
+        }
+    }
+
+    /**
+     * A parser that always blows up, to check that it only loses its own results.
+     */
+    public static class ExplodingParser extends TestResultParser {
+        @Override
+        public TestResult parseResult(String testResultLocations, Run<?, ?> run, FilePath workspace,
+                                      Launcher launcher, TaskListener listener) {
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    @LocalData
+    public void testParserFailureIsIsolated() throws Exception {
+        int oldThreads = LabeledTestResultGroupPublisher.PARSER_THREADS;
+        try {
+            for (int threads : new int[] {1, 4}) {
+                LabeledTestResultGroupPublisher.PARSER_THREADS = threads;
+                FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+                List<LabeledTestGroupConfiguration> configs = new ArrayList<LabeledTestGroupConfiguration>();
+                configs.add(new LabeledTestGroupConfiguration(JUnitParser.class.getName(), "*diagnosis*.xml", "unit"));
+                configs.add(new LabeledTestGroupConfiguration(ExplodingParser.class.getName(), "*.xml", "broken"));
+                configs.add(new LabeledTestGroupConfiguration(JUnitParser.class.getName(), "*hudson.l*.xml", "smoke"));
+                configs.add(new LabeledTestGroupConfiguration(JUnitParser.class.getName(), "*hudson.node*.xml", "unit"));
+                LabeledTestResultGroupPublisher publisher = usePublisher(project, configs);
+
+                FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+                MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+                assertTrue("unit results survive with " + threads + " threads", result.getGroupByLabel("unit").getTotalCount() > 0);
+                assertTrue("smoke results survive with " + threads + " threads", result.getGroupByLabel("smoke").getTotalCount() > 0);
+                assertEquals("the broken parser has no results", 0, result.getGroupByLabel("broken").getTotalCount());
+                assertEquals("the configured list isn't rolled up in place", 4, publisher.getConfigs().size());
+
+                // The console reads in config order: unit, broken, smoke
+                String log = build.getLog();
+                int trouble = log.indexOf("Trouble while parsing results for *.xml");
+                assertTrue("the failure is reported", trouble >= 0);
+                assertTrue("unit comes before the failure", log.indexOf("Here's your result") < trouble);
+                assertTrue("smoke comes after the failure", log.lastIndexOf("Here's your result") > trouble);
+            }
+        } finally {
+            LabeledTestResultGroupPublisher.PARSER_THREADS = oldThreads;
+        }
+    }
+
+    @LocalData
+    public void testJavaGroupingParsedOnAgent() throws Exception {
+        boolean oldParseOnAgent = LabeledTestResultGroupPublisher.PARSE_ON_AGENT;
+        LabeledTestResultGroupPublisher.PARSE_ON_AGENT = true;
+        try {
+            FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+            buildJavaGroupingProjectAndValidate(project);
+
+            // The failure can still be drilled down to through the compact result
+            FreeStyleBuild build = project.getLastBuild();
+            MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+            assertEquals(1, result.getFailedTests().size());
+            TestResult failure = result.getFailedTests().iterator().next();
+            assertTrue("failures come back compact", failure instanceof CompactCaseResult);
+            CompactTestResult compact = (CompactTestResult) failure.getParent();
+            assertSame(failure, compact.getFailure(failure.getSafeName()));
+            assertSame(failure, compact.getDynamic(failure.getSafeName(), null, null));
+            assertSame(failure, compact.findCorrespondingResult(compact.getSafeName() + "/" + failure.getSafeName()));
+            assertNull(compact.getFailure("no_such_test"));
+            assertSame("the failure knows its build", build, failure.getRun());
+        } finally {
+            LabeledTestResultGroupPublisher.PARSE_ON_AGENT = oldParseOnAgent;
+        }
+    }
+
+    private static LabeledTestResultGroupPublisher usePublisher(FreeStyleProject project,
+                                                                List<LabeledTestGroupConfiguration> configs) throws Exception {
+        LabeledTestResultGroupPublisher publisher = new LabeledTestResultGroupPublisher(configs);
+        project.getPublishersList().remove(LabeledTestResultGroupPublisher.class);
+        project.getPublishersList().add(publisher);
+        return publisher;
+    }
+
+    private static List<LabeledTestGroupConfiguration> junitConfigs(String... masksAndLabels) {
+        List<LabeledTestGroupConfiguration> configs = new ArrayList<LabeledTestGroupConfiguration>();
+        for (int i = 0; i < masksAndLabels.length; i += 2) {
+            configs.add(new LabeledTestGroupConfiguration(JUnitParser.class.getName(), masksAndLabels[i], masksAndLabels[i + 1]));
+        }
+        return configs;
+    }
+
+    @LocalData
+    public void testSinglePassScanWithOverlappingMasks() throws Exception {
+        boolean oldSinglePassScan = LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN;
+        try {
+            FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+
+            // How many tests each of the files involved holds, parsed one mask at a time
+            LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN = false;
+            usePublisher(project, junitConfigs(
+                    "*TooManyJobs*.xml", "tooMany",
+                    "*HudsonHomeDiskUsage*.xml", "diskUsage",
+                    "*hudson.l*.xml", "logging"));
+            MetaLabeledTestResultGroup reference = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS)
+                    .getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+            int tooMany = reference.getGroupByLabel("tooMany").getTotalCount();
+            int diskUsage = reference.getGroupByLabel("diskUsage").getTotalCount();
+            int logging = reference.getGroupByLabel("logging").getTotalCount();
+            assertTrue(tooMany > 0 && diskUsage > 0 && logging > 0);
+
+            // unit takes both diagnosis reports; smoke shares one of them, regression shares the other
+            LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN = true;
+            usePublisher(project, junitConfigs(
+                    "*diagnosis*.xml", "unit",
+                    "*TooManyJobs*.xml, *hudson.l*.xml", "smoke",
+                    "*HudsonHomeDiskUsage*.xml", "regression"));
+            FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+            MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+            assertEquals("the first mask gets both shared reports", tooMany + diskUsage, result.getGroupByLabel("unit").getTotalCount());
+            assertEquals("smoke keeps only the report it doesn't share", logging, result.getGroupByLabel("smoke").getTotalCount());
+            assertEquals("regression has nothing left", 0, result.getGroupByLabel("regression").getTotalCount());
+            assertEquals("nothing is counted twice", tooMany + diskUsage + logging, result.getTotalCount());
+
+            String log = build.getLog();
+            String tooManyOverlap = overlapLine(log, "TEST-hudson.diagnosis.TooManyJobsButNoViewTest.xml");
+            assertTrue(tooManyOverlap, tooManyOverlap.indexOf("[unit/") >= 0
+                    && tooManyOverlap.indexOf("[unit/") < tooManyOverlap.indexOf("[smoke/"));
+            String diskUsageOverlap = overlapLine(log, "TEST-hudson.diagnosis.HudsonHomeDiskUsageMonitorTest.xml");
+            assertTrue(diskUsageOverlap, diskUsageOverlap.indexOf("[unit/") >= 0
+                    && diskUsageOverlap.indexOf("[unit/") < diskUsageOverlap.indexOf("[regression/"));
+            assertTrue("the fully claimed config is skipped", log.indexOf(
+                    "All test reports for *HudsonHomeDiskUsage*.xml were already parsed under another label; skipping.") >= 0);
+        } finally {
+            LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN = oldSinglePassScan;
+        }
+    }
+
+    private static String overlapLine(String log, String report) {
+        int start = log.indexOf("Test report " + report + " is matched by");
+        assertTrue("overlap on " + report + " is reported", start >= 0);
+        int end = log.indexOf('\n', start);
+        return log.substring(start, end < 0 ? log.length() : end);
+    }
+
+    @LocalData
+    public void testJavaGroupingWithSinglePassScan() throws Exception {
+        boolean oldSinglePassScan = LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN;
+        LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN = true;
+        try {
+            buildJavaGroupingProjectAndValidate(setupProject(JUST_JAVA_GROUPS));
+        } finally {
+            LabeledTestResultGroupPublisher.SINGLE_PASS_SCAN = oldSinglePassScan;
+        }
+    }
+
     /**
      * Tests whether we can get result in previous builds. That behavior is not yet
      * supported in labeled test groups, so I'm deactivating this test.
@@ -359,6 +708,538 @@ public class CombinationOfParsersAndLabelsTest extends EnhancedHudsonTestCase {
          assertJavaProjectTestResults(build);
      }
 
+     @LocalData
+     public void testSummary() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         File summaryFile = new File(buildBeforeShutdown.getRootDir(), MetaLabeledTestResultGroupAction.SUMMARY_DATA_FILENAME);
+         assertTrue("summary should be written with the result", summaryFile.exists());
+
+         // An older build without a summary gets one on first use
+         summaryFile.delete();
+         reloadHudson();
+         FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+         MetaLabeledTestResultGroupAction action = projectAfterReload.getBuildByNumber(1).getAction(MetaLabeledTestResultGroupAction.class);
+         assertEquals("total count from the summary", 132, action.getTotalCount());
+         assertEquals("fail count from the summary", 1, action.getFailCount());
+         assertTrue("summary should be rebuilt", summaryFile.exists());
+
+         ResultSummary summary = action.getSummary();
+         assertTrue("labels from the summary", summary.getLabels().contains("unit"));
+         assertEquals("unit pass count from the summary", 39, summary.getLabel("unit").getPassCount());
+     }
+
+     @LocalData
+     public void testResultCacheEviction() throws Exception {
+         int oldMaxTests = ResultCache.MAX_TESTS;
+         // Room for one of these 132-test results, but not two
+         ResultCache.MAX_TESTS = 200;
+         ResultCache.get().clear();
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild first = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             long evictionsBefore = ResultCache.get().getEvictionCount();
+             FreeStyleBuild second = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             assertTrue("the first result should be evicted", ResultCache.get().getEvictionCount() > evictionsBefore);
+             assertEquals("only one result fits", 1, ResultCache.get().getSize());
+
+             // Evicted results load again on demand
+             assertJavaProjectTestResults(first);
+             assertJavaProjectTestResults(second);
+         } finally {
+             ResultCache.MAX_TESTS = oldMaxTests;
+             ResultCache.get().clear();
+         }
+     }
+
+     @LocalData
+     public void testResultCacheForgetsDeletedBuilds() throws Exception {
+         ResultCache.get().clear();
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         FreeStyleBuild build = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         MetaLabeledTestResultGroupAction action = build.getAction(MetaLabeledTestResultGroupAction.class);
+         assertNotNull("result cached after the build", ResultCache.get().get(action));
+
+         build.delete();
+         assertNull("deleted build's result dropped", ResultCache.get().get(action));
+         assertEquals(0, ResultCache.get().getSize());
+     }
+
+    /**
+     * A result that counts how often it's read back from disk, and holds up
+     * the read while {@link #gate} is closed.
+     */
+    public static class BlockingResult extends TestResult {
+        static final AtomicInteger LOADS = new AtomicInteger();
+        static volatile CountDownLatch gate;
+
+        private Object readResolve() {
+            LOADS.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(60, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "blocking";
+        }
+
+        @Override
+        public TestObject getParent() {
+            return null;
+        }
+
+        @Override
+        public TestResult getPreviousResult() {
+            return null;
+        }
+
+        @Override
+        public TestResult getResultInBuild(AbstractBuild<?, ?> build) {
+            return null;
+        }
+
+        @Override
+        public TestResult findCorrespondingResult(String id) {
+            return null;
+        }
+
+        @Override
+        public float getDuration() {
+            return 0;
+        }
+
+        @Override
+        public int getPassCount() {
+            return 1;
+        }
+
+        @Override
+        public int getFailCount() {
+            return 0;
+        }
+
+        @Override
+        public int getSkipCount() {
+            return 0;
+        }
+    }
+
+    public static class BlockingParser extends TestResultParser {
+        @Override
+        public TestResult parseResult(String testResultLocations, Run<?, ?> run, FilePath workspace,
+                                      Launcher launcher, TaskListener listener) {
+            return new BlockingResult();
+        }
+    }
+
+     @LocalData
+     public void testConcurrentLoadRunsOnce() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         List<LabeledTestGroupConfiguration> configs = junitConfigs("*diagnosis*.xml", "unit");
+         configs.add(new LabeledTestGroupConfiguration(BlockingParser.class.getName(), "*.xml", "blocking"));
+         usePublisher(project, configs);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         reloadHudson();
+         ResultCache.get().clear();
+
+         FreeStyleProject projectAfterReload = (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+         final MetaLabeledTestResultGroupAction unloaded = projectAfterReload.getBuildByNumber(1).getAction(MetaLabeledTestResultGroupAction.class);
+         final MetaLabeledTestResultGroupAction cached = projectAfterReload.getBuildByNumber(2).getAction(MetaLabeledTestResultGroupAction.class);
+         final MetaLabeledTestResultGroup cachedResult = cached.getResult();
+         assertNotNull(cachedResult);
+
+         BlockingResult.LOADS.set(0);
+         BlockingResult.gate = new CountDownLatch(1);
+         int threads = 4;
+         final MetaLabeledTestResultGroup[] results = new MetaLabeledTestResultGroup[threads];
+         final CountDownLatch finished = new CountDownLatch(threads);
+         ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+         try {
+             for (int i = 0; i < threads; i++) {
+                 final int n = i;
+                 pool.submit(new Runnable() {
+                     public void run() {
+                         try {
+                             results[n] = unloaded.getResult();
+                         } finally {
+                             finished.countDown();
+                         }
+                     }
+                 });
+             }
+             for (int i = 0; i < 600 && BlockingResult.LOADS.get() == 0; i++) {
+                 Thread.sleep(100);
+             }
+             assertEquals("the load has started", 1, BlockingResult.LOADS.get());
+
+             // While that load is stuck, a result that's in memory still comes right back
+             MetaLabeledTestResultGroup r = pool.submit(new Callable<MetaLabeledTestResultGroup>() {
+                 public MetaLabeledTestResultGroup call() {
+                     return cached.getResult();
+                 }
+             }).get(10, TimeUnit.SECONDS);
+             assertSame(cachedResult, r);
+             assertEquals("everyone waits for the one load", threads, finished.getCount());
+
+             BlockingResult.gate.countDown();
+             assertTrue(finished.await(60, TimeUnit.SECONDS));
+         } finally {
+             BlockingResult.gate.countDown();
+             BlockingResult.gate = null;
+             pool.shutdown();
+         }
+         assertEquals("loaded once", 1, BlockingResult.LOADS.get());
+         assertNotNull(results[0]);
+         for (MetaLabeledTestResultGroup result : results) {
+             assertSame("everyone gets the same result", results[0], result);
+         }
+         assertEquals(1, results[0].getGroupByLabel("blocking").getPassCount());
+     }
+
+     @LocalData
+     public void testAsyncPersistence() throws Exception {
+         boolean oldAsyncPersistence = MetaLabeledTestResultGroupAction.ASYNC_PERSISTENCE;
+         MetaLabeledTestResultGroupAction.ASYNC_PERSISTENCE = true;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             assertJavaProjectTestResults(buildBeforeShutdown);
+             assertTrue("result should be on disk once the build completes",
+                     new File(buildBeforeShutdown.getRootDir(), MetaLabeledTestResultGroupAction.RESULT_DATA_FILENAME).exists());
+             reloadHudson();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             assertJavaProjectTestResults(projectAfterReload.getBuildByNumber(1));
+         } finally {
+             MetaLabeledTestResultGroupAction.ASYNC_PERSISTENCE = oldAsyncPersistence;
+         }
+     }
+
+     @LocalData
+     public void testBinaryPersistence() throws Exception {
+         boolean oldBinaryStorage = MetaLabeledTestResultGroupAction.BINARY_STORAGE;
+         MetaLabeledTestResultGroupAction.BINARY_STORAGE = true;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             assertJavaProjectTestResults(buildBeforeShutdown);
+             File rootDir = buildBeforeShutdown.getRootDir();
+             assertTrue("binary result should be written", new File(rootDir, MetaLabeledTestResultGroupAction.BINARY_RESULT_DATA_FILENAME).exists());
+             assertTrue("xml result should be kept", new File(rootDir, MetaLabeledTestResultGroupAction.RESULT_DATA_FILENAME).exists());
+             reloadHudson();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             assertJavaProjectTestResults(projectAfterReload.getBuildByNumber(1));
+         } finally {
+             MetaLabeledTestResultGroupAction.BINARY_STORAGE = oldBinaryStorage;
+         }
+     }
+
+     @LocalData
+     public void testUnreadableBinaryFallsBackToXml() throws Exception {
+         boolean oldBinaryStorage = MetaLabeledTestResultGroupAction.BINARY_STORAGE;
+         MetaLabeledTestResultGroupAction.BINARY_STORAGE = true;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             File rootDir = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS).getRootDir();
+             File binary = new File(rootDir, MetaLabeledTestResultGroupAction.BINARY_RESULT_DATA_FILENAME);
+
+             // A well-formed binary file, but of something that's no test result
+             DataOutputStream out = new DataOutputStream(new FileOutputStream(binary));
+             try {
+                 out.writeInt(0x4c544752);
+                 out.writeShort(1);
+                 out.flush();
+                 GZIPOutputStream gz = new GZIPOutputStream(out);
+                 ObjectOutputStream oos = new ObjectOutputStream(gz);
+                 oos.writeObject(new File("not-a-result"));
+                 oos.flush();
+                 gz.finish();
+             } finally {
+                 out.close();
+             }
+
+             reloadHudson();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             assertJavaProjectTestResults(projectAfterReload.getBuildByNumber(1));
+             assertTrue("binary copy is made again from the XML", binary.length() > 1000);
+         } finally {
+             MetaLabeledTestResultGroupAction.BINARY_STORAGE = oldBinaryStorage;
+         }
+     }
+
+     @LocalData
+     public void testCountsAfterReloadWithDeferredTally() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         MetaLabeledTestResultGroup before = buildBeforeShutdown.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+         int pass = before.getPassCount();
+         int fail = before.getFailCount();
+         int skip = before.getSkipCount();
+         reloadHudson();
+         ResultCache.get().clear();
+         FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+         MetaLabeledTestResultGroup after = projectAfterReload.getBuildByNumber(1).getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+         assertEquals("pass count", pass, after.getPassCount());
+         assertEquals("fail count", fail, after.getFailCount());
+         assertEquals("skip count", skip, after.getSkipCount());
+         after.tally();
+         after.tally();
+         assertEquals("pass count after tally", pass, after.getPassCount());
+         assertEquals("fail count after tally", fail, after.getFailCount());
+         assertEquals("skip count after tally", skip, after.getSkipCount());
+         for (String label : after.getLabels()) {
+             LabeledTestResultGroup group = after.getGroupByLabel(label);
+             for (TestResult child : group.getChildren()) {
+                 assertSame("parent of a child of " + label, group, child.getParent());
+             }
+         }
+     }
+
+     @LocalData
+     public void testParallelTallyAfterReload() throws Exception {
+         int oldThreads = ParallelTally.THREADS;
+         int oldThreshold = ParallelTally.THRESHOLD;
+         ParallelTally.THREADS = 4;
+         ParallelTally.THRESHOLD = 0;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             assertJavaProjectTestResults(buildBeforeShutdown);
+             reloadHudson();
+             ResultCache.get().clear();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             assertJavaProjectTestResults(projectAfterReload.getBuildByNumber(1));
+         } finally {
+             ParallelTally.THREADS = oldThreads;
+             ParallelTally.THRESHOLD = oldThreshold;
+         }
+     }
+
+     @LocalData
+     public void testTrendStoreSurvivesDeletionAndReload() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         assertTrue("trend store should be written", new File(project.getRootDir(), "labeledTestTrends.dat").exists());
+         project.getBuildByNumber(2).delete();
+         reloadHudson();
+         FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+         MetaLabeledTestResultGroupProjectAction projectAction = projectAfterReload.getAction(MetaLabeledTestResultGroupProjectAction.class);
+         for (String label : projectAction.getLabels()) {
+             List<TrendPoint> points = projectAction.getTrendGraph(label).getList();
+             assertEquals("points for " + label, 2, points.size());
+             assertEquals(1, points.get(0).getBuildNumber());
+             assertEquals(3, points.get(1).getBuildNumber());
+             assertEquals("pass count for " + label, projectAfterReload.getBuildByNumber(3).getAction(MetaLabeledTestResultGroupAction.class)
+                     .getSummary().getLabel(label).getPassCount(), points.get(1).getPassCount());
+         }
+     }
+
+     @LocalData
+     public void testTrendDataForAllLabels() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         HudsonTestCase.WebClient wc = new HudsonTestCase.WebClient();
+         Page page = wc.goTo(project.getUrl() + "groupedTests/trendData", "application/json");
+         JSONObject labels = JSONObject.fromObject(page.getWebResponse().getContentAsString()).getJSONObject("labels");
+         MetaLabeledTestResultGroupAction action = project.getLastBuild().getAction(MetaLabeledTestResultGroupAction.class);
+         assertEquals(action.getLabels().size(), labels.size());
+         for (String label : action.getLabels()) {
+             JSONObject series = labels.getJSONObject(label);
+             assertEquals("builds for " + label, 2, series.getJSONArray("builds").size());
+             assertEquals(2, series.getJSONArray("builds").getInt(1));
+             assertEquals("pass count for " + label, action.getSummary().getLabel(label).getPassCount(),
+                     series.getJSONArray("pass").getInt(1));
+         }
+     }
+
+     @LocalData
+     public void testTrendDataETagFollowsItsOwnProject() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         FreeStyleProject other = setupProject(CAT_PROJECT_NAME);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         String etag = getTrendDataETag(project);
+         assertNotNull(etag);
+
+         other.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         assertEquals("unchanged by another project's build", etag, getTrendDataETag(project));
+
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         assertFalse("changed by the project's own build", etag.equals(getTrendDataETag(project)));
+     }
+
+     private String getTrendDataETag(FreeStyleProject project) throws Exception {
+         Page page = new HudsonTestCase.WebClient().goTo(project.getUrl() + "groupedTests/trendData", "application/json");
+         return page.getWebResponse().getResponseHeaderValue("ETag");
+     }
+
+     @LocalData
+     public void testTrendDepthAndDownsampling() throws Exception {
+         int oldDepth = MetaLabeledTestResultGroupProjectAction.TREND_DEPTH;
+         int oldPoints = MetaLabeledTestResultGroupProjectAction.TREND_POINTS;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             for (int i = 0; i < 5; i++) {
+                 project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             }
+             MetaLabeledTestResultGroupProjectAction projectAction = project.getAction(MetaLabeledTestResultGroupProjectAction.class);
+
+             MetaLabeledTestResultGroupProjectAction.TREND_DEPTH = 1;
+             List<TrendPoint> points = projectAction.getTrendGraph("unit").getList();
+             assertEquals("only the builds within the depth", 2, points.size());
+             assertEquals(4, points.get(0).getBuildNumber());
+
+             MetaLabeledTestResultGroupProjectAction.TREND_DEPTH = 300;
+             MetaLabeledTestResultGroupProjectAction.TREND_POINTS = 3;
+             points = projectAction.getTrendGraph("unit").getList();
+             assertEquals("thinned down to the number of points", 3, points.size());
+             assertEquals("first build is kept", 1, points.get(0).getBuildNumber());
+             assertEquals("last build is kept", 5, points.get(2).getBuildNumber());
+             assertEquals("duration stats over every build", 5,
+                     projectAction.getDurationGraph("unit").getStats().size());
+         } finally {
+             MetaLabeledTestResultGroupProjectAction.TREND_DEPTH = oldDepth;
+             MetaLabeledTestResultGroupProjectAction.TREND_POINTS = oldPoints;
+         }
+     }
+
+     @LocalData
+     public void testTrendHistorySharedUntilNextBuild() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         MetaLabeledTestResultGroupProjectAction projectAction = project.getAction(MetaLabeledTestResultGroupProjectAction.class);
+         List<TrendPoint> unit = projectAction.getTrendGraph("unit").getList();
+         assertSame("same project state, same points", unit, projectAction.getTrendGraph("unit").getList());
+
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         List<TrendPoint> afterBuild = projectAction.getTrendGraph("unit").getList();
+         assertNotSame("a new build is a new project state", unit, afterBuild);
+         assertEquals(3, afterBuild.size());
+     }
+
+     @LocalData
+     public void testDurationTrend() throws Exception {
+         int oldWindow = DurationTrendGraph.WINDOW;
+         DurationTrendGraph.WINDOW = 2;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             for (int i = 0; i < 3; i++) {
+                 project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             }
+             MetaLabeledTestResultGroupProjectAction projectAction = project.getAction(MetaLabeledTestResultGroupProjectAction.class);
+             List<DurationTrendGraph.Stats> stats = projectAction.getDurationGraph("unit").getStats();
+             assertEquals("one row per build", 3, stats.size());
+             float second = stats.get(1).getPoint().getDuration();
+             float third = stats.get(2).getPoint().getDuration();
+             assertEquals("median over the window", Math.min(second, third), stats.get(2).getMedian());
+             assertEquals("90th percentile over the window", Math.max(second, third), stats.get(2).getPercentile());
+             assertEquals("duration as summarized", project.getLastBuild().getAction(MetaLabeledTestResultGroupAction.class)
+                     .getSummary().getLabel("unit").getDuration(), third);
+             assertNull(projectAction.getDurationGraph("no_such_label"));
+         } finally {
+             DurationTrendGraph.WINDOW = oldWindow;
+         }
+     }
+
+     @LocalData
+     public void testPreviousResultRefreshedOnCompletion() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         FreeStyleBuild first = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         FreeStyleBuild second = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         MetaLabeledTestResultGroupAction firstAction = first.getAction(MetaLabeledTestResultGroupAction.class);
+         MetaLabeledTestResultGroup result = second.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+         MetaLabeledTestResultGroup previous = result.getPreviousResult();
+         assertSame(firstAction.getResultAsTestResultGroup(), previous);
+
+         // Take the first build's result away behind our back: the link to it is remembered...
+         first.getActions().remove(firstAction);
+         assertSame("the previous build is remembered", previous, result.getPreviousResult());
+
+         // ...until another build completes
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         assertNull("a completed build makes us look again", result.getPreviousResult());
+     }
+
+     @LocalData
+     public void testLastResultFollowsBuildsAndDeletions() throws Exception {
+         FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         MetaLabeledTestResultGroupProjectAction projectAction = project.getAction(MetaLabeledTestResultGroupProjectAction.class);
+         assertEquals(2, projectAction.getLastTestResultAction().run.getNumber());
+         assertEquals(new ArrayList<String>(projectAction.getLastTestResultAction().getLabels()),
+                 new ArrayList<String>(projectAction.getLabels()));
+
+         project.getBuildByNumber(2).delete();
+         assertEquals("deleted build is forgotten", 1, projectAction.getLastTestResultAction().run.getNumber());
+
+         project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+         assertEquals("completed build is picked up", 3, projectAction.getLastTestResultAction().run.getNumber());
+         assertTrue(projectAction.getLabels().contains("unit"));
+     }
+
+     @LocalData
+     public void testSplitPersistence() throws Exception {
+         boolean oldSplitStorage = MetaLabeledTestResultGroupAction.SPLIT_STORAGE;
+         MetaLabeledTestResultGroupAction.SPLIT_STORAGE = true;
+         try {
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             File rootDir = buildBeforeShutdown.getRootDir();
+             assertTrue("split result should be written", new File(rootDir, MetaLabeledTestResultGroupAction.SPLIT_DATA_DIRNAME).isDirectory());
+             assertFalse("xml result should not be written", new File(rootDir, MetaLabeledTestResultGroupAction.RESULT_DATA_FILENAME).exists());
+             reloadHudson();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             FreeStyleBuild build = projectAfterReload.getBuildByNumber(1);
+             MetaLabeledTestResultGroup result = build.getAction(MetaLabeledTestResultGroupAction.class).getResultAsTestResultGroup();
+             // Counts and labels come from the manifest, groups on demand
+             assertEquals("total count from the manifest", 132, result.getTotalCount());
+             assertTrue("labels from the manifest", result.getLabels().contains("smoke"));
+             assertEquals("unit group loaded on its own", 39, result.getGroupByLabel("unit").getTotalCount());
+             assertJavaProjectTestResults(build);
+
+             // A label added after loading shows up along with the stored ones
+             TestResult child = result.getGroupByLabel("unit").getChildren().iterator().next();
+             result.addTestResult("late", child);
+             assertTrue("added label", result.getLabels().contains("late"));
+             assertTrue("stored label", result.getLabels().contains("smoke"));
+         } finally {
+             MetaLabeledTestResultGroupAction.SPLIT_STORAGE = oldSplitStorage;
+         }
+     }
+
+     @LocalData
+     public void testMigrationToBinaryStorage() throws Exception {
+         boolean oldBinaryStorage = MetaLabeledTestResultGroupAction.BINARY_STORAGE;
+         try {
+             MetaLabeledTestResultGroupAction.BINARY_STORAGE = false;
+             FreeStyleProject project = setupProject(JUST_JAVA_GROUPS);
+             FreeStyleBuild buildBeforeShutdown = project.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+             File rootDir = buildBeforeShutdown.getRootDir();
+             assertFalse("no binary result yet", new File(rootDir, MetaLabeledTestResultGroupAction.BINARY_RESULT_DATA_FILENAME).exists());
+
+             MetaLabeledTestResultGroupAction.BINARY_STORAGE = true;
+             reloadHudson();
+             FreeStyleProject projectAfterReload =  (FreeStyleProject) hudson.getItem(JUST_JAVA_GROUPS);
+             assertJavaProjectTestResults(projectAfterReload.getBuildByNumber(1));
+             assertTrue("binary result should be migrated", new File(rootDir, MetaLabeledTestResultGroupAction.BINARY_RESULT_DATA_FILENAME).exists());
+             assertTrue("xml result should be kept", new File(rootDir, MetaLabeledTestResultGroupAction.RESULT_DATA_FILENAME).exists());
+         } finally {
+             MetaLabeledTestResultGroupAction.BINARY_STORAGE = oldBinaryStorage;
+         }
+     }
+
     /**
      * This started failing when we merged in 1.343 from upstream, because Hudson.load()
      * doesn't seem to be an API anymore.